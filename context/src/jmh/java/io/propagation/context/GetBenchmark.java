@@ -0,0 +1,141 @@
+/*
+ * Copyright 2020, Propagation.io Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.propagation.context;
+
+import io.propagation.context.Context.Key;
+import io.propagation.context.PersistentHashArrayMappedTrie.Node;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Compares looking up keys with the iterative {@link PersistentHashArrayMappedTrie#get} against the
+ * recursive {@link Node#get}, whose call sites see every type of node, and reading several keys one
+ * at a time against {@link Context#getAll}. Sizes of up to 8 keys are stored in a {@code Leaf} or
+ * {@code LinearLeaf}, as most contexts are, and {@link #keyGetDelta} reads a context derived from
+ * the others with {@link Context#withValue}, whose chain of deltas {@link Key#get} resolves.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class GetBenchmark {
+  @Param({"1", "2", "4", "8", "16", "256", "4096"})
+  public int size;
+
+  private Key<?>[] keys;
+  private Node<Key<?>, Object> root;
+  private Context context;
+  private Context deltaContext;
+  private int next;
+  // The first keys, read together
+  private Context.KeySet keySet;
+  private final Object[] out = new Object[8];
+
+  /**
+   * Builds the trie, and calls {@link Node#get} and {@link PersistentHashArrayMappedTrie#get} on
+   * each type of node, and {@link Key#get} on both contexts, to make them megamorphic, as they are
+   * in applications with contexts of different sizes.
+   */
+  @Setup
+  public void setUp() {
+    keys = new Key<?>[size];
+    Context.Builder builder = Context.ROOT.toBuilder();
+    for (int i = 0; i < size; i++) {
+      Key<Integer> key = Context.key("key" + i);
+      keys[i] = key;
+      builder.put(key, i);
+      root = PersistentHashArrayMappedTrie.<Key<?>, Object>put(root, key, i);
+    }
+    context = builder.build();
+    deltaContext = context.withValue(keys[0], null);
+    keySet = Context.keySet(Arrays.copyOf(keys, Math.min(out.length, size)));
+
+    Key<?> key = keys[0];
+    Node<Key<?>, Object> leaf = PersistentHashArrayMappedTrie.<Key<?>, Object>put(null, key, 0);
+    Node<Key<?>, Object> linearLeaf =
+        PersistentHashArrayMappedTrie.<Key<?>, Object>put(leaf, Context.key("other"), 1);
+    Node<Key<?>, Object> collisionLeaf =
+        new PersistentHashArrayMappedTrie.CollisionLeaf<Key<?>, Object>(
+            key, 0, new Key<>("collision", null, key.ordinal), 1);
+    for (int i = 0; i < 100_000; i++) {
+      leaf.get(key, key.hashCode(), 0);
+      linearLeaf.get(key, key.hashCode(), 0);
+      collisionLeaf.get(key, key.hashCode(), 0);
+      root.get(key, key.hashCode(), 0);
+      PersistentHashArrayMappedTrie.get(leaf, key);
+      PersistentHashArrayMappedTrie.get(linearLeaf, key);
+      PersistentHashArrayMappedTrie.get(collisionLeaf, key);
+      PersistentHashArrayMappedTrie.get(root, key);
+      key.get(context);
+      key.get(deltaContext);
+    }
+  }
+
+  private Key<?> nextKey() {
+    Key<?> key = keys[next];
+    next = next + 1 == keys.length ? 0 : next + 1;
+    return key;
+  }
+
+  /** The iterative lookup. */
+  @Benchmark
+  public Object iterative() {
+    return PersistentHashArrayMappedTrie.get(root, nextKey());
+  }
+
+  /** The recursive lookup, through a virtual call per level. */
+  @Benchmark
+  public Object recursive() {
+    Key<?> key = nextKey();
+    return root.get(key, key.hashCode(), 0);
+  }
+
+  /** The lookup as done by applications, including the key summary test. */
+  @Benchmark
+  public Object keyGet() {
+    return nextKey().get(context);
+  }
+
+  /** The lookup as done by applications, in a context derived from another. */
+  @Benchmark
+  public Object keyGetDelta() {
+    return nextKey().get(deltaContext);
+  }
+
+  /** Reads the keys of the key set one at a time. */
+  @Benchmark
+  public Object[] keyGetEach() {
+    for (int i = 0; i < keySet.size(); i++) {
+      out[i] = keySet.get(i).get(context);
+    }
+    return out;
+  }
+
+  /** Reads the keys of the key set in a single walk. */
+  @Benchmark
+  public Object[] getAll() {
+    context.getAll(keySet, out);
+    return out;
+  }
+}
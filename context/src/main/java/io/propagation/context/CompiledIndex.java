@@ -0,0 +1,237 @@
+/*
+ * Copyright 2020, Propagation.io Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.propagation.context;
+
+import io.propagation.context.Context.Key;
+import io.propagation.context.PersistentHashArrayMappedTrie.Node;
+import javax.annotation.Nullable;
+
+/**
+ * A read-only root {@link Node} created by {@link Context#compile}: an open-addressed hash table
+ * indexed by the high bits of the key hashes, sized so that most keys, and often all of them, are
+ * found with a single probe. Since {@link Key#hashCode} multiplies the key's ordinal by the golden
+ * ratio, taking its high bits is Fibonacci hashing.
+ *
+ * <p>It is the representation meant for read-mostly contexts of tens to hundreds of values. A probe
+ * reads one or two slots, where a scan of the key hashes would read all of them, even if
+ * vectorized.
+ *
+ * <p>Changes convert it back to a {@link PersistentHashArrayMappedTrie}, copying all of the entries
+ * once.
+ */
+final class CompiledIndex extends Node<Key<?>, Object> {
+  // Tables up to this many times larger than needed are tried to avoid collisions
+  // VisibleForTesting
+  static final int MAX_EXTRA_BITS = 3;
+
+  // Keys at even indices, each followed by its value, or null for an empty slot
+  private final Object[] table;
+  // Shifts a hash right to its home slot
+  private final int shift;
+  // The most slots after its home slot that a key was placed at
+  final int maxDisplacement;
+  private final int size;
+
+  private CompiledIndex(Object[] table, int shift, int maxDisplacement, int size) {
+    this.table = table;
+    this.shift = shift;
+    this.maxDisplacement = maxDisplacement;
+    this.size = size;
+  }
+
+  /** Returns a compiled index with the entries of {@code root}, or {@code root} if it is one. */
+  @Nullable
+  static Node<Key<?>, Object> compile(@Nullable Node<Key<?>, Object> root) {
+    if (root == null || root instanceof CompiledIndex) {
+      return root;
+    }
+    final int size = root.size();
+    final Key<?>[] keys = new Key<?>[size];
+    final Object[] values = new Object[size];
+    root.forEach(
+        new EntryVisitor<Key<?>, Object>() {
+          int count;
+
+          @Override
+          public void visit(Key<?> key, Object value) {
+            keys[count] = key;
+            values[count] = value;
+            count++;
+          }
+        });
+    // The smallest table that can hold the keys is at least half empty
+    int minBits = 32 - Integer.numberOfLeadingZeros(2 * size - 1);
+    for (int bits = minBits; bits <= minBits + MAX_EXTRA_BITS; bits++) {
+      if (isCollisionFree(keys, 32 - bits)) {
+        return create(keys, values, bits);
+      }
+    }
+    return create(keys, values, minBits);
+  }
+
+  private static boolean isCollisionFree(Key<?>[] keys, int shift) {
+    long[] used = new long[((1 << (32 - shift)) + 63) / 64];
+    for (Key<?> key : keys) {
+      int index = key.hashCode() >>> shift;
+      long bit = 1L << index;
+      if ((used[index >>> 6] & bit) != 0) {
+        return false;
+      }
+      used[index >>> 6] |= bit;
+    }
+    return true;
+  }
+
+  private static CompiledIndex create(Key<?>[] keys, Object[] values, int bits) {
+    Object[] table = new Object[2 << bits];
+    int mask = table.length - 1;
+    int shift = 32 - bits;
+    int maxDisplacement = 0;
+    for (int i = 0; i < keys.length; i++) {
+      // Linear probing
+      int index = (keys[i].hashCode() >>> shift) << 1;
+      int displacement = 0;
+      while (table[index] != null) {
+        index = (index + 2) & mask;
+        displacement++;
+      }
+      table[index] = keys[i];
+      table[index + 1] = values[i];
+      maxDisplacement = Math.max(maxDisplacement, displacement);
+    }
+    return new CompiledIndex(table, shift, maxDisplacement, keys.length);
+  }
+
+  @Override
+  int size() {
+    return size;
+  }
+
+  @Override
+  long retainedBytes(MemoryLayout layout) {
+    return layout.objectBytes(1, 16) + layout.arrayBytes(table.length);
+  }
+
+  /** Returns the value with the specified key, or {@code null} if it does not exist. */
+  @Nullable
+  Object get(Key<?> key) {
+    int index = (key.hashCode() >>> shift) << 1;
+    for (int displacement = 0; ; displacement++) {
+      Object tableKey = table[index];
+      if (tableKey == key) {
+        return table[index + 1];
+      }
+      if (tableKey == null || displacement == maxDisplacement) {
+        return null;
+      }
+      index = (index + 2) & (table.length - 1);
+    }
+  }
+
+  @Override
+  @Nullable
+  Object get(Key<?> key, int hash, int bitsConsumed) {
+    return get(key);
+  }
+
+  @Override
+  Node<Key<?>, Object> put(Key<?> key, Object value, int hash, int bitsConsumed) {
+    return decompile(null).put(key, value, hash, bitsConsumed);
+  }
+
+  @Override
+  @Nullable
+  Node<Key<?>, Object> remove(Key<?> key, int hash, int bitsConsumed) {
+    if (get(key) == null && !containsKey(key)) {
+      return this;
+    }
+    return size == 1 ? null : decompile(key);
+  }
+
+  private boolean containsKey(Key<?> key) {
+    for (int i = 0; i < table.length; i += 2) {
+      if (table[i] == key) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  // Copies the entries, except that of the excluded key, into a trie
+  private Node<Key<?>, Object> decompile(@Nullable Key<?> excluded) {
+    Key<?>[] keys = new Key<?>[size];
+    Object[] values = new Object[size];
+    int count = 0;
+    for (int i = 0; i < table.length; i += 2) {
+      if (table[i] != null && table[i] != excluded) {
+        keys[count] = (Key<?>) table[i];
+        values[count] = table[i + 1];
+        count++;
+      }
+    }
+    return PersistentHashArrayMappedTrie.putAll(null, keys, values, count);
+  }
+
+  @Override
+  void forEach(EntryVisitor<? super Key<?>, ? super Object> visitor) {
+    for (int i = 0; i < table.length; i += 2) {
+      if (table[i] != null) {
+        visitor.visit((Key<?>) table[i], table[i + 1]);
+      }
+    }
+  }
+
+  @Override
+  int computeContentHashCode() {
+    int hash = 0;
+    for (int i = 0; i < table.length; i += 2) {
+      if (table[i] != null) {
+        hash += PersistentHashArrayMappedTrie.entryContentHashCode(table[i], table[i + 1]);
+      }
+    }
+    return hash;
+  }
+
+  @Override
+  int shallowHashCode() {
+    return PersistentHashArrayMappedTrie.entriesHashCode(table, table.length);
+  }
+
+  @Override
+  boolean shallowEquals(Node<?, ?> other) {
+    if (!(other instanceof CompiledIndex)) {
+      return false;
+    }
+    CompiledIndex index = (CompiledIndex) other;
+    return table.length == index.table.length
+        && maxDisplacement == index.maxDisplacement
+        && PersistentHashArrayMappedTrie.entriesEqual(table, index.table, table.length);
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder valuesSb = new StringBuilder();
+    valuesSb.append("CompiledIndex(").append(String.format("maxDisplacement=%d ", maxDisplacement));
+    for (int i = 0; i < table.length; i += 2) {
+      if (table[i] != null) {
+        valuesSb.append("(key=").append(table[i]);
+        valuesSb.append(" value=").append(table[i + 1]).append(") ");
+      }
+    }
+    return valuesSb.append(")").toString();
+  }
+}
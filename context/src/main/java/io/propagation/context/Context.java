@@ -17,8 +17,13 @@
 package io.propagation.context;
 
 import io.propagation.context.PersistentHashArrayMappedTrie.Node;
+import java.lang.ref.Reference;
+import java.lang.ref.SoftReference;
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
 import java.util.concurrent.Callable;
 import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -121,6 +126,11 @@ public class Context {
   /**
    * Create a {@link Key} with the given debug name. Multiple different keys may have the same name;
    * the name is intended for debugging purposes and does not impact behavior.
+   *
+   * <p>Keys are numbered densely in creation order. When the {@code
+   * io.propagation.context.keySlots} system property is {@code true}, contexts that only hold
+   * values for the first 64 keys created find them by that number instead of by hash. Keys should
+   * be created once, as constants, to benefit from it.
    */
   public static <T> Key<T> key(String name) {
     return new Key<>(name);
@@ -129,11 +139,52 @@ public class Context {
   /**
    * Create a {@link Key} with the given debug name and default value. Multiple different keys may
    * have the same name; the name is intended for debugging purposes and does not impact behavior.
+   *
+   * <p>Keys are numbered like those of {@link #key}.
    */
   public static <T> Key<T> keyWithDefault(String name, T defaultValue) {
     return new Key<>(name, defaultValue);
   }
 
+  /**
+   * Create a {@link ReferenceKey} with the given debug name, whose values are weakly reachable from
+   * contexts, such as for large objects that captured contexts should not retain.
+   */
+  public static <T> ReferenceKey<T> weakKey(String name) {
+    return ReferenceKey.register(new ReferenceKey<T>(name, false));
+  }
+
+  /**
+   * Create a {@link ReferenceKey} with the given debug name, whose values are softly reachable from
+   * contexts, such as for caches that may be recomputed if the heap runs low.
+   */
+  public static <T> ReferenceKey<T> softKey(String name) {
+    return ReferenceKey.register(new ReferenceKey<T>(name, true));
+  }
+
+  /**
+   * Create a {@link KeySet} of the given keys, to read their values together with {@link #getAll}.
+   * Key sets should be created once, like keys.
+   */
+  public static KeySet keySet(Key<?>... keys) {
+    return new KeySet(keys);
+  }
+
+  /** Create a {@link LongKey} with the given debug name and default value. */
+  public static LongKey longKey(String name, long defaultValue) {
+    return new LongKey(name, defaultValue);
+  }
+
+  /** Create an {@link IntKey} with the given debug name and default value. */
+  public static IntKey intKey(String name, int defaultValue) {
+    return new IntKey(name, defaultValue);
+  }
+
+  /** Create a {@link BooleanKey} with the given debug name and default value. */
+  public static BooleanKey booleanKey(String name, boolean defaultValue) {
+    return new BooleanKey(name, defaultValue);
+  }
+
   /** Return the context associated with the current scope, will never return {@code null}. */
   public static Context current() {
     Context current = storage().current();
@@ -144,11 +195,18 @@ public class Context {
   }
 
   @Nullable final Node<Key<?>, Object> keyValueEntries;
+  // The union of the summary bits of the keys with values, and possibly of some keys whose values
+  // were removed, so that looking up most other keys needs a single test.
+  final long keySummary;
   // The number parents between this context and the root context.
   final int generation;
+  // The values memoized by ContextLocals, at odd indices after their ContextLocal. Only ever
+  // replaced by a copy with a value appended.
+  @Nullable volatile Object[] memos;
 
-  private Context(Context parent, Node<Key<?>, Object> keyValueEntries) {
+  Context(Context parent, Node<Key<?>, Object> keyValueEntries, long keySummary) {
     this.keyValueEntries = keyValueEntries;
+    this.keySummary = keySummary;
     this.generation = parent.generation + 1;
     validateGeneration(generation);
   }
@@ -156,6 +214,7 @@ public class Context {
   /** Construct for {@link #ROOT}. */
   private Context() {
     this.keyValueEntries = null;
+    this.keySummary = 0;
     this.generation = 0;
     validateGeneration(generation);
   }
@@ -185,33 +244,70 @@ public class Context {
    * of separating them. But if the items are unrelated, have separate keys for them.
    */
   public <V> Context withValue(Key<V> k1, V v1) {
+    Node<Key<?>, Object> newKeyValueEntries = put(liveEntries(), k1, v1);
+    return new Context(this, newKeyValueEntries, keySummary | k1.summaryBit);
+  }
+
+  /**
+   * Create a new context with the given key value set. Unlike {@link #withValue(Key, Object)}, the
+   * value is stored unboxed, so no box is allocated unless it is read with {@link LongKey#get}.
+   */
+  public Context withValue(LongKey key, long value) {
+    Node<Key<?>, Object> newKeyValueEntries = DeltaNode.createPrimitive(liveEntries(), key, value);
+    return new Context(this, newKeyValueEntries, keySummary | key.summaryBit);
+  }
+
+  /**
+   * Create a new context with the given key value set. Unlike {@link #withValue(Key, Object)}, the
+   * value is stored unboxed, so no box is allocated unless it is read with {@link IntKey#get}.
+   */
+  public Context withValue(IntKey key, int value) {
+    Node<Key<?>, Object> newKeyValueEntries = DeltaNode.createPrimitive(liveEntries(), key, value);
+    return new Context(this, newKeyValueEntries, keySummary | key.summaryBit);
+  }
+
+  /**
+   * Create a new context with the given key value set. Unlike {@link #withValue(Key, Object)}, no
+   * box is allocated.
+   */
+  public Context withValue(BooleanKey key, boolean value) {
+    return withValue(key, Boolean.valueOf(value));
+  }
+
+  /**
+   * Create a new context where the value of the given key is computed by {@code supplier} when it
+   * is first read, such as a parsed token that few requests need. It is computed at most once, by
+   * the first thread to read it from this context or any context derived from it, and is then
+   * shared by them. If the supplier throws, the exception is thrown to the reader and the value is
+   * computed again on the next read.
+   */
+  public <V> Context withLazyValue(Key<V> key, ValueSupplier<? extends V> supplier) {
     Node<Key<?>, Object> newKeyValueEntries =
-        PersistentHashArrayMappedTrie.put(keyValueEntries, k1, v1);
-    return new Context(this, newKeyValueEntries);
+        put(liveEntries(), key, new LazyValue(checkNotNull(supplier, "supplier")));
+    return new Context(this, newKeyValueEntries, keySummary | key.summaryBit);
   }
 
   /** Create a new context with the given key value set. */
   public <V1, V2> Context withValues(Key<V1> k1, V1 v1, Key<V2> k2, V2 v2) {
-    Node<Key<?>, Object> newKeyValueEntries =
-        PersistentHashArrayMappedTrie.put(keyValueEntries, k1, v1);
-    newKeyValueEntries = PersistentHashArrayMappedTrie.put(newKeyValueEntries, k2, v2);
-    return new Context(this, newKeyValueEntries);
+    Node<Key<?>, Object> newKeyValueEntries = put(liveEntries(), k1, v1);
+    newKeyValueEntries = put(newKeyValueEntries, k2, v2);
+    return new Context(this, newKeyValueEntries, keySummary | k1.summaryBit | k2.summaryBit);
   }
 
   /** Create a new context with the given key value set. */
   public <V1, V2, V3> Context withValues(Key<V1> k1, V1 v1, Key<V2> k2, V2 v2, Key<V3> k3, V3 v3) {
-    Node<Key<?>, Object> newKeyValueEntries =
-        PersistentHashArrayMappedTrie.put(keyValueEntries, k1, v1);
-    newKeyValueEntries = PersistentHashArrayMappedTrie.put(newKeyValueEntries, k2, v2);
-    newKeyValueEntries = PersistentHashArrayMappedTrie.put(newKeyValueEntries, k3, v3);
-    return new Context(this, newKeyValueEntries);
+    Node<Key<?>, Object> newKeyValueEntries = put(liveEntries(), k1, v1);
+    newKeyValueEntries = put(newKeyValueEntries, k2, v2);
+    newKeyValueEntries = put(newKeyValueEntries, k3, v3);
+    return new Context(
+        this, newKeyValueEntries, keySummary | k1.summaryBit | k2.summaryBit | k3.summaryBit);
   }
 
   /**
    * Create a new context with the given key value set.
    *
-   * <p>For more than 4 key-value pairs, note that multiple calls to {@link #withValue} can be
-   * chained together. That is,
+   * <p>For more than 4 key-value pairs, use {@link #toBuilder}. Note that multiple calls to {@link
+   * #withValue} can also be chained together. That is,
    *
    * <pre>
    * context.withValues(K1, V1, K2, V2);
@@ -225,12 +321,347 @@ public class Context {
    */
   public <V1, V2, V3, V4> Context withValues(
       Key<V1> k1, V1 v1, Key<V2> k2, V2 v2, Key<V3> k3, V3 v3, Key<V4> k4, V4 v4) {
+    Node<Key<?>, Object> newKeyValueEntries = put(liveEntries(), k1, v1);
+    newKeyValueEntries = put(newKeyValueEntries, k2, v2);
+    newKeyValueEntries = put(newKeyValueEntries, k3, v3);
+    newKeyValueEntries = put(newKeyValueEntries, k4, v4);
+    return new Context(
+        this,
+        newKeyValueEntries,
+        keySummary | k1.summaryBit | k2.summaryBit | k3.summaryBit | k4.summaryBit);
+  }
+
+  /**
+   * Returns a builder for a new context with this context's values and the values given to the
+   * builder. Unlike chained calls to {@link #withValue}, it copies the context's storage only once,
+   * no matter how many values are set.
+   *
+   * <pre>
+   *   Context context = Context.current().toBuilder()
+   *       .put(TRACE_KEY, trace)
+   *       .put(TENANT_KEY, tenant)
+   *       .put(DEADLINE_KEY, deadline)
+   *       .build();
+   * </pre>
+   */
+  public Builder toBuilder() {
+    return new Builder(this);
+  }
+
+  /**
+   * Create a new context without a value for the given key. Unlike setting the value to {@code
+   * null} with {@link #withValue}, the entry is removed, so the new context does not retain it.
+   * Returns this context if it has no value for the key.
+   */
+  public Context withoutValue(Key<?> key) {
     Node<Key<?>, Object> newKeyValueEntries =
-        PersistentHashArrayMappedTrie.put(keyValueEntries, k1, v1);
-    newKeyValueEntries = PersistentHashArrayMappedTrie.put(newKeyValueEntries, k2, v2);
-    newKeyValueEntries = PersistentHashArrayMappedTrie.put(newKeyValueEntries, k3, v3);
-    newKeyValueEntries = PersistentHashArrayMappedTrie.put(newKeyValueEntries, k4, v4);
-    return new Context(this, newKeyValueEntries);
+        PersistentHashArrayMappedTrie.remove(keyValueEntries, checkNotNull(key, "key"));
+    if (newKeyValueEntries == keyValueEntries) {
+      return this;
+    }
+    // Other keys may share the bit of the removed one
+    return new Context(this, newKeyValueEntries, keySummary);
+  }
+
+  /**
+   * Create a new context without values for the given keys. Returns this context if it has no value
+   * for any of them.
+   */
+  public Context withoutValues(Key<?>... keys) {
+    Node<Key<?>, Object> newKeyValueEntries = keyValueEntries;
+    for (Key<?> key : checkNotNull(keys, "keys")) {
+      newKeyValueEntries =
+          PersistentHashArrayMappedTrie.remove(newKeyValueEntries, checkNotNull(key, "key"));
+    }
+    if (newKeyValueEntries == keyValueEntries) {
+      return this;
+    }
+    return new Context(this, newKeyValueEntries, keySummary);
+  }
+
+  /**
+   * Create a new context with the values of this context and of {@code other}, where those of
+   * {@code other} take precedence. For example, to resume work captured on another thread while
+   * keeping the values of the current context:
+   *
+   * <pre>
+   *   Context.current().overlay(capturedContext).run(work);
+   * </pre>
+   *
+   * <p>The storage of both contexts is shared wherever possible, so the cost grows with how much
+   * they differ rather than with their number of values.
+   */
+  public Context overlay(Context other) {
+    checkNotNull(other, "other");
+    Node<Key<?>, Object> newKeyValueEntries;
+    if (keyValueEntries == null || other.keyValueEntries == null) {
+      newKeyValueEntries = keyValueEntries == null ? other.keyValueEntries : keyValueEntries;
+    } else {
+      newKeyValueEntries =
+          PersistentHashArrayMappedTrie.merge(
+              DeltaNode.flatten(keyValueEntries), DeltaNode.flatten(other.keyValueEntries));
+    }
+    return new Context(this, newKeyValueEntries, keySummary | other.keySummary);
+  }
+
+  /**
+   * Create a new context with only the values of this context for {@code keys}, such as before
+   * handing work to a background task, so that the task does not keep the other values reachable.
+   * Keys without a value in this context have none in the new one.
+   *
+   * @see #currentContextExecutor(Executor, KeySet)
+   */
+  public Context project(KeySet keys) {
+    Node<Key<?>, Object> entries = liveEntries();
+    Key<?>[] newKeys = new Key<?>[checkNotNull(keys, "keys").keys.length];
+    Object[] newValues = new Object[newKeys.length];
+    int count = 0;
+    long newKeySummary = 0;
+    for (Key<?> key : keys.sortedKeys) {
+      if (count > 0 && newKeys[count - 1] == key) {
+        // Equal keys are next to each other once sorted
+        continue;
+      }
+      // Keep the stored value, so that lazy values and references are kept as they are
+      Object value = PersistentHashArrayMappedTrie.get(entries, key);
+      if (value != null || PersistentHashArrayMappedTrie.containsKey(entries, key)) {
+        newKeys[count] = key;
+        newValues[count] = value;
+        count++;
+        newKeySummary |= key.summaryBit;
+      }
+    }
+    if (count == 0) {
+      return ROOT;
+    }
+    return new Context(ROOT, putAll(null, newKeys, newValues, count), newKeySummary);
+  }
+
+  /**
+   * Calls the visitor with each key of this context and its value. Values that were set to {@code
+   * null} are visited as {@code null}, and keys without a value or whose {@link ReferenceKey} value
+   * was collected are not visited. Lazy values are computed first, and values set with {@link
+   * #withValue(LongKey, long)} or {@link #withValue(IntKey, int)} are boxed on their first visit.
+   * Otherwise no objects are allocated beyond a wrapper of the visitor, so it is suitable for
+   * propagating or logging every request's context.
+   */
+  public void forEachEntry(EntryVisitor<? super Key<?>, Object> visitor) {
+    DeltaNode.forEachEntry(
+        keyValueEntries, new UnwrappingEntryVisitor(checkNotNull(visitor, "visitor")));
+  }
+
+  /**
+   * Writes the value of each key of {@code keys} to {@code out}, at the index of the key in the key
+   * set, as returned by {@link Key#get}. The storage of the context is walked once for all the
+   * keys, instead of once per key, and nothing is allocated in the steady state, so it suits code
+   * that reads the same keys of every request's context, such as for propagation or logging. The
+   * first read of a value set with {@link #withValue(LongKey, long)} or {@link #withValue(IntKey,
+   * int)} allocates its box, which the context then keeps.
+   *
+   * @throws IllegalArgumentException if {@code out} is shorter than {@code keys}
+   */
+  public void getAll(KeySet keys, Object[] out) {
+    checkNotNull(keys, "keys");
+    if (checkNotNull(out, "out").length < keys.keys.length) {
+      throw new IllegalArgumentException("out is shorter than keys");
+    }
+    Node<Key<?>, Object> entries = keyValueEntries;
+    DeltaNode deltas = null;
+    if (entries instanceof DeltaNode) {
+      // Look up the keys below the chain, then replace the values it sets
+      deltas = (DeltaNode) entries;
+      entries = deltas.below();
+    }
+    PersistentHashArrayMappedTrie.getAll(
+        entries, keys.sortedKeys, keys.hashes, keys.positions, out);
+    for (int i = 0; i < keys.keys.length; i++) {
+      Key<?> key = keys.keys[i];
+      Object value = out[i];
+      if (deltas != null) {
+        DeltaNode delta = deltas.findDelta(key);
+        if (delta != null) {
+          value = delta.value();
+        }
+      }
+      value = unwrap(key, value);
+      out[i] = value == null ? key.defaultValue : value;
+    }
+  }
+
+  /**
+   * Calls the visitor with each value that this context adds to, changes from or removes from
+   * {@code base}, such as one of its ancestors. Values are compared by identity. Storage the
+   * contexts share is skipped, so the cost grows with how much they differ rather than with their
+   * number of values. This lets a codec propagate only what changed since the context it last sent.
+   */
+  public void diff(Context base, DiffVisitor<? super Key<?>, Object> visitor) {
+    PersistentHashArrayMappedTrie.diff(
+        DeltaNode.flatten(checkNotNull(base, "base").keyValueEntries),
+        DeltaNode.flatten(keyValueEntries),
+        new UnwrappingDiffVisitor(checkNotNull(visitor, "visitor")));
+  }
+
+  /**
+   * Returns whether this context has the same entries as {@code other}, as visited by {@link
+   * #forEachEntry}, with values compared by {@code equals}, after computing lazy values. Unlike
+   * {@link #equals}, it lets contexts be used as keys of caches of data derived from their values.
+   * Storage the contexts share is not compared.
+   */
+  public boolean contentEquals(Context other) {
+    return ReferenceKey.contentEquals(
+        DeltaNode.flatten(keyValueEntries),
+        keySummary,
+        DeltaNode.flatten(checkNotNull(other, "other").keyValueEntries),
+        other.keySummary);
+  }
+
+  /**
+   * Returns a hash code consistent with {@link #contentEquals}. Hashes are cached in the storage of
+   * a context, which is mostly shared with the context it was derived from, so only a few nodes
+   * need to be hashed the first time and none after that. Values must not change their hash codes.
+   */
+  public int contentHashCode() {
+    return ReferenceKey.contentHashCode(keyValueEntries, keySummary);
+  }
+
+  /**
+   * Returns an estimate of the bytes of heap retained by this context and its storage, not
+   * including its keys and values. The storage it shares with other contexts is included, so the
+   * estimates of contexts derived from one another overlap. It is proportional to the number of
+   * values, without allocating, so it can be sampled to monitor how much memory captured contexts
+   * cost.
+   */
+  public long estimateRetainedBytes() {
+    return estimateRetainedBytes(false);
+  }
+
+  /**
+   * Returns an estimate of the bytes of heap retained by this context and its storage, including
+   * the shallow size of each value if {@code includeValues}. Only the header of values is counted,
+   * except for strings, boxed primitives and arrays, whose size is known.
+   */
+  public long estimateRetainedBytes(boolean includeValues) {
+    return estimateRetainedBytes(includeValues, MemoryLayout.DEFAULT);
+  }
+
+  long estimateRetainedBytes(boolean includeValues, MemoryLayout layout) {
+    long bytes =
+        layout.objectBytes(2, 12)
+            + PersistentHashArrayMappedTrie.retainedBytes(keyValueEntries, layout);
+    Object[] memos = this.memos;
+    if (memos != null) {
+      bytes += layout.arrayBytes(memos.length);
+    }
+    if (includeValues && keyValueEntries != null) {
+      ValueBytesVisitor visitor = new ValueBytesVisitor(layout);
+      keyValueEntries.forEach(visitor);
+      bytes += visitor.bytes;
+    }
+    return bytes;
+  }
+
+  // Returns a value as stored in a context, with lazy values computed and references followed
+  @Nullable
+  static Object unwrap(Key<?> key, @Nullable Object value) {
+    value = LazyValue.unwrap(value);
+    if (key instanceof ReferenceKey && value instanceof Reference) {
+      value = ((Reference<?>) value).get();
+    }
+    return value;
+  }
+
+  /** Passes entries to a visitor with their values unwrapped, skipping collected ones. */
+  private static final class UnwrappingEntryVisitor extends DeltaNode.ChainVisitor {
+    private final EntryVisitor<? super Key<?>, Object> visitor;
+
+    UnwrappingEntryVisitor(EntryVisitor<? super Key<?>, Object> visitor) {
+      this.visitor = visitor;
+    }
+
+    @Override
+    void visitEntry(Key<?> key, @Nullable Object value) {
+      Object unwrapped = unwrap(key, value);
+      if (unwrapped != null || !(value instanceof Reference)) {
+        visitor.visit(key, unwrapped);
+      }
+    }
+  }
+
+  /** Passes differences to a visitor with their values unwrapped. */
+  private static final class UnwrappingDiffVisitor implements DiffVisitor<Key<?>, Object> {
+    private final DiffVisitor<? super Key<?>, Object> visitor;
+
+    UnwrappingDiffVisitor(DiffVisitor<? super Key<?>, Object> visitor) {
+      this.visitor = visitor;
+    }
+
+    @Override
+    public void added(Key<?> key, @Nullable Object value) {
+      visitor.added(key, unwrap(key, value));
+    }
+
+    @Override
+    public void changed(Key<?> key, @Nullable Object oldValue, @Nullable Object newValue) {
+      visitor.changed(key, unwrap(key, oldValue), unwrap(key, newValue));
+    }
+
+    @Override
+    public void removed(Key<?> key, @Nullable Object oldValue) {
+      visitor.removed(key, unwrap(key, oldValue));
+    }
+  }
+
+  private static final class ValueBytesVisitor implements EntryVisitor<Key<?>, Object> {
+    private final MemoryLayout layout;
+    long bytes;
+
+    ValueBytesVisitor(MemoryLayout layout) {
+      this.layout = layout;
+    }
+
+    @Override
+    public void visit(Key<?> key, Object value) {
+      bytes += layout.valueBytes(value);
+    }
+  }
+
+  /**
+   * Returns a context with the same values as this one, which is shared with other interned
+   * contexts that have equal values, as is the storage of the values they have in common. This lets
+   * long-lived caches that capture many equal contexts share their memory.
+   *
+   * <p>Values are compared with {@code equals}, so only contexts whose values are immutable should
+   * be interned. Values set with {@link #withLazyValue} are not computed, and are only equal to
+   * themselves. Interning is best effort: it is backed by a bounded table that does not keep
+   * contexts reachable, so equal contexts are not guaranteed to be interned to the same one.
+   */
+  public Context intern() {
+    return Interner.INSTANCE.intern(this);
+  }
+
+  /**
+   * Returns the fraction of calls to {@link #intern} that found an existing context with equal
+   * values, from 0 to 1. A low rate means that interning costs more than it saves.
+   */
+  public static double internHitRate() {
+    return Interner.INSTANCE.hitRate();
+  }
+
+  /**
+   * Returns a context with the same values as this one, stored for the fastest lookups, such as for
+   * a context that is created once and then read many times. Most values, and often all of them,
+   * are found with a single probe of a hash table.
+   *
+   * <p>Contexts derived from the returned context, such as with {@link #withValue}, copy its values
+   * back into ordinary storage once, so compiling is only worthwhile for contexts that are read far
+   * more often than they are derived from.
+   */
+  public Context compile() {
+    Node<Key<?>, Object> newKeyValueEntries = CompiledIndex.compile(keyValueEntries);
+    if (newKeyValueEntries == keyValueEntries) {
+      return this;
+    }
+    return new Context(this, newKeyValueEntries, keySummary);
   }
 
   /**
@@ -381,18 +812,141 @@ public class Context {
     return new CurrentContextExecutor();
   }
 
-  /** Key for indexing values stored in a context. */
-  public static final class Key<T> {
+  /**
+   * Create an executor that propagates the {@link #current} context, {@link #project projected} to
+   * {@code keys}, when {@link Executor#execute} is called as the {@link #current} context of the
+   * {@code Runnable} scheduled. Tasks that run long after they are scheduled then only keep the
+   * values they need reachable. <em>Note that this is a static method.</em>
+   */
+  public static Executor currentContextExecutor(final Executor e, final KeySet keys) {
+    checkNotNull(keys, "keys");
+    final class ProjectingContextExecutor implements Executor {
+      @Override
+      public void execute(Runnable r) {
+        e.execute(Context.current().project(keys).wrap(r));
+      }
+    }
+
+    return new ProjectingContextExecutor();
+  }
+
+  /** Builder for a context with any number of new values. Obtained from {@link #toBuilder}. */
+  public static final class Builder {
+    private final Context parent;
+    private Key<?>[] keys = new Key<?>[8];
+    private Object[] values = new Object[8];
+    private int size;
+
+    private Builder(Context parent) {
+      this.parent = parent;
+    }
+
+    /** Sets the value for the key, replacing any value previously set for it. */
+    public <V> Builder put(Key<V> key, V value) {
+      checkNotNull(key, "key");
+      for (int i = 0; i < size; i++) {
+        if (keys[i] == key) {
+          values[i] = key.wrap(value);
+          return this;
+        }
+      }
+      if (size == keys.length) {
+        keys = Arrays.copyOf(keys, 2 * size);
+        values = Arrays.copyOf(values, 2 * size);
+      }
+      keys[size] = key;
+      values[size] = key.wrap(value);
+      size++;
+      return this;
+    }
+
+    /** Create a new context with the values set so far. */
+    public Context build() {
+      long newKeySummary = parent.keySummary;
+      for (int i = 0; i < size; i++) {
+        newKeySummary |= keys[i].summaryBit;
+      }
+      Node<Key<?>, Object> newKeyValueEntries =
+          putAll(DeltaNode.flatten(parent.liveEntries()), keys, values, size);
+      return new Context(parent, newKeyValueEntries, newKeySummary);
+    }
+  }
+
+  /**
+   * Keys whose values are read together with {@link #getAll}. They are sorted once, when the set is
+   * created, in the order the storage of contexts is walked in.
+   */
+  public static final class KeySet {
+    // In the order given
+    final Key<?>[] keys;
+    // In trie order, with their hashes and their positions in keys
+    final Key<?>[] sortedKeys;
+    final int[] hashes;
+    final int[] positions;
+
+    KeySet(Key<?>[] keys) {
+      this.keys = Arrays.copyOf(checkNotNull(keys, "keys"), keys.length);
+      sortedKeys = Arrays.copyOf(this.keys, keys.length);
+      hashes = new int[keys.length];
+      Integer[] sortedPositions = new Integer[keys.length];
+      for (int i = 0; i < keys.length; i++) {
+        checkNotNull(keys[i], "key");
+        sortedPositions[i] = i;
+      }
+      PersistentHashArrayMappedTrie.sortInTrieOrder(
+          sortedKeys, sortedPositions, hashes, keys.length);
+      positions = new int[keys.length];
+      for (int i = 0; i < keys.length; i++) {
+        positions[i] = sortedPositions[i];
+      }
+    }
+
+    /** Returns the number of keys. */
+    public int size() {
+      return keys.length;
+    }
+
+    /** Returns the key at the index, which is where {@link #getAll} writes its value. */
+    public Key<?> get(int index) {
+      return keys[index];
+    }
+  }
+
+  /**
+   * Key for indexing values stored in a context.
+   *
+   * <p>Not final only so that the primitive keys, like {@link LongKey}, can be used wherever a key
+   * is; keys cannot be created outside of this package.
+   */
+  public static class Key<T> {
+    private static final AtomicInteger nextOrdinal = new AtomicInteger();
+    // 2^32 / golden ratio. Being odd, multiplying by it maps distinct ordinals to distinct hashes,
+    // and consecutive ordinals are spread across the trie's index bits.
+    private static final int HASH_MULTIPLIER = 0x9E3779B9;
+
     private final String name;
     private final T defaultValue;
+    // Dense creation order, used by OrdinalIndex
+    final int ordinal;
+    private final int hash;
+    // The bit of Context.keySummary for this key, chosen by the high bits of the hash
+    final long summaryBit;
 
     Key(String name) {
       this(name, null);
     }
 
     Key(String name, T defaultValue) {
+      this(name, defaultValue, nextOrdinal.getAndIncrement());
+    }
+
+    // VisibleForTesting
+    Key(String name, T defaultValue, int ordinal) {
       this.name = checkNotNull(name, "name");
       this.defaultValue = defaultValue;
+      this.ordinal = ordinal;
+      this.hash = ordinal * HASH_MULTIPLIER;
+      this.summaryBit = 1L << (hash >>> 26);
     }
 
     /** Get the value from the {@link #current()} context for this key. */
@@ -403,8 +957,57 @@ public class Context {
     /** Get the value from the specified context for this key. */
     @SuppressWarnings("unchecked")
     public T get(Context context) {
-      T value = (T) PersistentHashArrayMappedTrie.get(context.keyValueEntries, this);
-      return value == null ? defaultValue : value;
+      if ((context.keySummary & summaryBit) == 0) {
+        return defaultValue;
+      }
+      Node<Key<?>, Object> keyValueEntries = context.keyValueEntries;
+      if (keyValueEntries instanceof DeltaNode) {
+        keyValueEntries = ((DeltaNode) keyValueEntries).find(this);
+      }
+      Object value;
+      if (keyValueEntries instanceof DeltaNode) {
+        value = ((DeltaNode) keyValueEntries).value();
+      } else if (keyValueEntries instanceof OrdinalIndex) {
+        value = ((OrdinalIndex) keyValueEntries).get(this);
+      } else if (keyValueEntries instanceof CompiledIndex) {
+        value = ((CompiledIndex) keyValueEntries).get(this);
+      } else {
+        value = PersistentHashArrayMappedTrie.get(keyValueEntries, this);
+      }
+      if (value instanceof LazyValue) {
+        value = ((LazyValue) value).get();
+      }
+      return value == null ? defaultValue : (T) value;
+    }
+
+    // Returns the delta holding the unboxed value of this key in the context, or null
+    @Nullable
+    final DeltaNode findPrimitive(Context context) {
+      if ((context.keySummary & summaryBit) == 0
+          || !(context.keyValueEntries instanceof DeltaNode)) {
+        return null;
+      }
+      Node<Key<?>, Object> node = ((DeltaNode) context.keyValueEntries).find(this);
+      if (node instanceof DeltaNode && ((DeltaNode) node).isPrimitive()) {
+        return (DeltaNode) node;
+      }
+      return null;
+    }
+
+    // Returns what to store in a context for the value
+    @Nullable
+    Object wrap(@Nullable Object value) {
+      return value;
+    }
+
+    /**
+     * Returns a hash derived from the key's creation order. Unlike the identity hash code, it is
+     * distinct for each of the first 2<sup>32</sup> keys created, so keys never collide in a
+     * context.
+     */
+    @Override
+    public int hashCode() {
+      return hash;
     }
 
     @Override
@@ -413,6 +1016,255 @@ public class Context {
     }
   }
 
+  /**
+   * A {@link Key} whose values are only weakly or softly reachable from contexts, so that contexts
+   * captured by queued tasks or caches do not keep large values from being collected. Once a value
+   * is collected, {@link #get} returns {@code null}, and contexts derived from one holding it with
+   * {@link #withValue} or {@link #toBuilder} drop its entry.
+   */
+  public static final class ReferenceKey<T> extends Key<T> {
+    // All reference keys, to check for collected values, and the union of their summary bits
+    private static volatile ReferenceKey<?>[] keys = new ReferenceKey<?>[0];
+    private static volatile long keysSummary;
+
+    private final boolean soft;
+
+    ReferenceKey(String name, boolean soft) {
+      super(name);
+      this.soft = soft;
+    }
+
+    static synchronized <T> ReferenceKey<T> register(ReferenceKey<T> key) {
+      ReferenceKey<?>[] newKeys = Arrays.copyOf(keys, keys.length + 1);
+      newKeys[keys.length] = key;
+      keys = newKeys;
+      keysSummary |= key.summaryBit;
+      return key;
+    }
+
+    /**
+     * Returns the entries without those of reference keys whose values were collected. Only the
+     * reference keys that may have a value are looked up.
+     */
+    @Nullable
+    static Node<Key<?>, Object> purge(@Nullable Node<Key<?>, Object> entries, long keySummary) {
+      if ((keySummary & keysSummary) == 0) {
+        return entries;
+      }
+      for (ReferenceKey<?> key : keys) {
+        if ((keySummary & key.summaryBit) != 0) {
+          Object value = PersistentHashArrayMappedTrie.get(entries, key);
+          if (value instanceof Reference && ((Reference<?>) value).get() == null) {
+            entries = PersistentHashArrayMappedTrie.remove(entries, key);
+          }
+        }
+      }
+      return entries;
+    }
+
+    /**
+     * Returns the content hash of the entries, where the values of reference keys are hashed by
+     * their referents, and those that were collected are left out, as {@link #forEachEntry} visits
+     * them.
+     */
+    static int contentHashCode(@Nullable Node<Key<?>, Object> entries, long keySummary) {
+      int hash = PersistentHashArrayMappedTrie.contentHashCode(entries);
+      if ((keySummary & keysSummary) == 0) {
+        return hash;
+      }
+      for (ReferenceKey<?> key : keys) {
+        if ((keySummary & key.summaryBit) != 0) {
+          Object value = PersistentHashArrayMappedTrie.get(entries, key);
+          if (value instanceof Reference) {
+            hash -= PersistentHashArrayMappedTrie.entryContentHashCode(key, value);
+            Object referent = ((Reference<?>) value).get();
+            if (referent != null) {
+              hash += PersistentHashArrayMappedTrie.entryContentHashCode(key, referent);
+            }
+          }
+        }
+      }
+      return hash;
+    }
+
+    /**
+     * Returns whether the entries are equal, where the values of reference keys are compared by
+     * their referents, and those that were collected are treated as absent.
+     */
+    static boolean contentEquals(
+        @Nullable Node<Key<?>, Object> entries,
+        long keySummary,
+        @Nullable Node<Key<?>, Object> otherEntries,
+        long otherKeySummary) {
+      long summary = (keySummary | otherKeySummary) & keysSummary;
+      if (summary != 0) {
+        for (ReferenceKey<?> key : keys) {
+          if ((summary & key.summaryBit) == 0) {
+            continue;
+          }
+          Object value = PersistentHashArrayMappedTrie.get(entries, key);
+          Object otherValue = PersistentHashArrayMappedTrie.get(otherEntries, key);
+          if (!(value instanceof Reference) && !(otherValue instanceof Reference)) {
+            continue;
+          }
+          Object referent = unwrap(key, value);
+          Object otherReferent = unwrap(key, otherValue);
+          if (isPresent(entries, key, value, referent)
+                  != isPresent(otherEntries, key, otherValue, otherReferent)
+              || (referent != otherReferent
+                  && (referent == null || !referent.equals(otherReferent)))) {
+            return false;
+          }
+          // Compared, so the references are not compared by identity below
+          entries = PersistentHashArrayMappedTrie.remove(entries, key);
+          otherEntries = PersistentHashArrayMappedTrie.remove(otherEntries, key);
+        }
+      }
+      return PersistentHashArrayMappedTrie.contentEquals(entries, otherEntries);
+    }
+
+    // Whether the key has an entry that was not collected
+    private static boolean isPresent(
+        @Nullable Node<Key<?>, Object> entries,
+        Key<?> key,
+        @Nullable Object value,
+        @Nullable Object referent) {
+      if (value instanceof Reference) {
+        return referent != null;
+      }
+      return value != null || PersistentHashArrayMappedTrie.containsKey(entries, key);
+    }
+
+    @Override
+    @Nullable
+    Object wrap(@Nullable Object value) {
+      if (value == null || value instanceof LazyValue) {
+        // Lazy values are retained once computed
+        return value;
+      }
+      return soft ? new SoftReference<>(value) : new WeakReference<>(value);
+    }
+
+    /** Get the value from the specified context for this key, or {@code null} if collected. */
+    @Override
+    @SuppressWarnings("unchecked")
+    public T get(Context context) {
+      return (T) unwrap(this, super.get(context));
+    }
+  }
+
+  /**
+   * A {@link Key} for {@code long} values, such as trace ids and deadlines, that are set with
+   * {@link Context#withValue(LongKey, long)} and read with {@link #getLong} without allocating a
+   * box.
+   */
+  public static final class LongKey extends Key<Long> {
+    private final long defaultLong;
+
+    LongKey(String name, long defaultValue) {
+      super(name, defaultValue);
+      this.defaultLong = defaultValue;
+    }
+
+    /** Get the value from the {@link #current()} context for this key. */
+    public long getLong() {
+      return getLong(Context.current());
+    }
+
+    /** Get the value from the specified context for this key. */
+    public long getLong(Context context) {
+      DeltaNode delta = findPrimitive(context);
+      if (delta != null) {
+        return delta.bits();
+      }
+      Long value = get(context);
+      // null if set to null through withValue(Key, Object)
+      return value == null ? defaultLong : value;
+    }
+  }
+
+  /**
+   * A {@link Key} for {@code int} values, that are set with {@link Context#withValue(IntKey, int)}
+   * and read with {@link #getInt} without allocating a box.
+   */
+  public static final class IntKey extends Key<Integer> {
+    private final int defaultInt;
+
+    IntKey(String name, int defaultValue) {
+      super(name, defaultValue);
+      this.defaultInt = defaultValue;
+    }
+
+    /** Get the value from the {@link #current()} context for this key. */
+    public int getInt() {
+      return getInt(Context.current());
+    }
+
+    /** Get the value from the specified context for this key. */
+    public int getInt(Context context) {
+      DeltaNode delta = findPrimitive(context);
+      if (delta != null) {
+        return (int) delta.bits();
+      }
+      Integer value = get(context);
+      return value == null ? defaultInt : value;
+    }
+  }
+
+  /**
+   * A {@link Key} for {@code boolean} values, such as sampling flags, that are set without
+   * allocating and read without unboxing them at the call site.
+   */
+  public static final class BooleanKey extends Key<Boolean> {
+    private final boolean defaultBoolean;
+
+    BooleanKey(String name, boolean defaultValue) {
+      super(name, defaultValue);
+      this.defaultBoolean = defaultValue;
+    }
+
+    /** Get the value from the {@link #current()} context for this key. */
+    public boolean getBoolean() {
+      return getBoolean(Context.current());
+    }
+
+    /** Get the value from the specified context for this key. */
+    public boolean getBoolean(Context context) {
+      Boolean value = get(context);
+      return value == null ? defaultBoolean : value;
+    }
+  }
+
+  // Returns the entries without those of reference keys whose values were collected, to derive
+  // a new context from
+  @Nullable
+  private Node<Key<?>, Object> liveEntries() {
+    return ReferenceKey.purge(keyValueEntries, keySummary);
+  }
+
+  // Puts the first count keys, which must be distinct, with their already wrapped values
+  @Nullable
+  private static Node<Key<?>, Object> putAll(
+      @Nullable Node<Key<?>, Object> keyValueEntries, Key<?>[] keys, Object[] values, int count) {
+    if (keyValueEntries == null && OrdinalIndex.ENABLED && count > 0) {
+      keyValueEntries = OrdinalIndex.create(keys[0], values[0]);
+      for (int i = 1; i < count; i++) {
+        keyValueEntries = PersistentHashArrayMappedTrie.put(keyValueEntries, keys[i], values[i]);
+      }
+      return keyValueEntries;
+    }
+    return PersistentHashArrayMappedTrie.putAll(keyValueEntries, keys, values, count);
+  }
+
+  private static Node<Key<?>, Object> put(
+      @Nullable Node<Key<?>, Object> keyValueEntries, Key<?> key, Object value) {
+    value = key.wrap(value);
+    if (keyValueEntries == null) {
+      return OrdinalIndex.create(key, value);
+    }
+    return DeltaNode.create(keyValueEntries, key, value);
+  }
+
   private static <T> T checkNotNull(T reference, Object errorMessage) {
     if (reference == null) {
       throw new NullPointerException(String.valueOf(errorMessage));
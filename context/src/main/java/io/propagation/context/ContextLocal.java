@@ -0,0 +1,112 @@
+/*
+ * Copyright 2020, Propagation.io Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.propagation.context;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import javax.annotation.Nullable;
+
+/**
+ * A value derived from a context, computed at most once per context instance and then memoized in
+ * it, such as the headers sent for its values. Like {@link ThreadLocal}, but for {@link Context}s:
+ *
+ * <pre>
+ *   static final ContextLocal&lt;Map&lt;String, String&gt;&gt; HEADERS =
+ *       new ContextLocal&lt;Map&lt;String, String&gt;&gt;() {
+ *         &#64;Override
+ *         protected Map&lt;String, String&gt; computeValue(Context context) {
+ *           return toHeaders(context);
+ *         }
+ *       };
+ *
+ *   Map&lt;String, String&gt; headers = HEADERS.get(context);
+ * </pre>
+ *
+ * <p>Memoized values are retained as long as their context, so instances should be created once, as
+ * constants, and compute values that are small. At most 8 values are memoized in each context;
+ * others are computed on each access.
+ */
+public abstract class ContextLocal<T> {
+  // VisibleForTesting
+  static final int MAX_MEMOIZED = 8;
+
+  private static final AtomicReferenceFieldUpdater<Context, Object[]> MEMOS =
+      AtomicReferenceFieldUpdater.newUpdater(Context.class, Object[].class, "memos");
+
+  /**
+   * Computes the value for the context. It is called at most once per context while fewer than 8
+   * locals are memoized in it, unless several threads get the value at once, in which case one of
+   * their values is memoized and returned to all of them. Once 8 are, it is called on each access
+   * of other locals.
+   */
+  @Nullable
+  protected abstract T computeValue(Context context);
+
+  /** Returns the value for the current context. */
+  @Nullable
+  public final T get() {
+    return get(Context.current());
+  }
+
+  /** Returns the value for the context, computing it if it has not been memoized yet. */
+  @Nullable
+  public final T get(Context context) {
+    Object[] memos = context.memos;
+    int index = indexOf(memos);
+    if (index >= 0) {
+      return value(memos, index);
+    }
+    T value = computeValue(context);
+    while (memos == null || memos.length < 2 * MAX_MEMOIZED) {
+      Object[] newMemos;
+      if (memos == null) {
+        newMemos = new Object[2];
+      } else {
+        newMemos = Arrays.copyOf(memos, memos.length + 2);
+      }
+      newMemos[newMemos.length - 2] = this;
+      newMemos[newMemos.length - 1] = value;
+      if (MEMOS.compareAndSet(context, memos, newMemos)) {
+        break;
+      }
+      // Another value was memoized meanwhile, which may be this one
+      memos = context.memos;
+      index = indexOf(memos);
+      if (index >= 0) {
+        return value(memos, index);
+      }
+    }
+    return value;
+  }
+
+  // Returns the index of this local in the keys of memos, at even indices, or -1
+  private int indexOf(@Nullable Object[] memos) {
+    if (memos != null) {
+      for (int i = 0; i < memos.length; i += 2) {
+        if (memos[i] == this) {
+          return i;
+        }
+      }
+    }
+    return -1;
+  }
+
+  @SuppressWarnings("unchecked")
+  private T value(Object[] memos, int index) {
+    return (T) memos[index + 1];
+  }
+}
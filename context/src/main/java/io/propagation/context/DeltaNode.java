@@ -0,0 +1,401 @@
+/*
+ * Copyright 2020, Propagation.io Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.propagation.context;
+
+import io.propagation.context.Context.Key;
+import io.propagation.context.PersistentHashArrayMappedTrie.Node;
+import javax.annotation.Nullable;
+
+/**
+ * A root {@link Node} holding a single entry set over the storage of the parent context. Setting a
+ * value only allocates this node, instead of copying a path of the parent's trie, which is cheaper
+ * for short-lived contexts that are read a few times. Lookups walk the chain of deltas down to the
+ * parent's storage, so a chain is flattened into a trie once it becomes {@link #MAX_DEPTH} deep, or
+ * when an operation needs a trie, such as {@link Context#overlay}. Reads never flatten a chain, and
+ * once a delta is flattened, lookups go straight to its trie.
+ *
+ * <p>The deltas of a chain have distinct keys: setting a key again copies the deltas above the one
+ * that set it, so that the chain does not keep the old value reachable.
+ *
+ * <p>The values of {@link Context.LongKey} and {@link Context.IntKey} are stored unboxed, so that
+ * setting and reading them does not allocate a box. They are boxed when first read as an object, or
+ * when the chain is flattened.
+ */
+final class DeltaNode extends Node<Key<?>, Object> {
+  // VisibleForTesting
+  static final int MAX_DEPTH = 4;
+
+  private final Key<?> key;
+  // Racy if primitive, as the box is created on the first read and has a final field
+  @Nullable private Object value;
+  private final boolean primitive;
+  private final long bits;
+  // Only null if this holds the first entry of a context, which must be primitive then
+  @Nullable private final Node<Key<?>, Object> parent;
+  // The number of deltas in the chain, including this one
+  final int depth;
+  // Racy, as tries are safely published through their final fields
+  @Nullable private Node<Key<?>, Object> flattened;
+
+  private DeltaNode(Key<?> key, @Nullable Object value, @Nullable Node<Key<?>, Object> parent) {
+    this(key, value, false, 0, parent);
+  }
+
+  private DeltaNode(
+      Key<?> key,
+      @Nullable Object value,
+      boolean primitive,
+      long bits,
+      @Nullable Node<Key<?>, Object> parent) {
+    this.key = key;
+    this.value = value;
+    this.primitive = primitive;
+    this.bits = bits;
+    this.parent = parent;
+    this.depth = parent instanceof DeltaNode ? ((DeltaNode) parent).depth + 1 : 1;
+  }
+
+  // Copies this delta over another parent
+  private DeltaNode withParent(@Nullable Node<Key<?>, Object> parent) {
+    return new DeltaNode(key, value, primitive, bits, parent);
+  }
+
+  /** Returns a new root {@code Node} over {@code root} where the key is set to the value. */
+  static Node<Key<?>, Object> create(
+      Node<Key<?>, Object> root, Key<?> key, @Nullable Object value) {
+    if (!(root instanceof DeltaNode)) {
+      return new DeltaNode(key, value, root);
+    }
+    DeltaNode delta = (DeltaNode) root;
+    Node<Key<?>, Object> flattened = delta.flattened;
+    if (flattened != null) {
+      // Start a new chain rather than keep the flattened one reachable
+      return new DeltaNode(key, value, flattened);
+    }
+    DeltaNode shadowed = delta.findDelta(key);
+    if (shadowed != null) {
+      return new DeltaNode(key, value, delta.without(shadowed));
+    }
+    if (delta.depth < MAX_DEPTH) {
+      return new DeltaNode(key, value, delta);
+    }
+    return PersistentHashArrayMappedTrie.put(delta.flattened(), key, value);
+  }
+
+  /**
+   * Returns a new root {@code Node} over {@code root}, which may be empty, where the key, a {@link
+   * Context.LongKey} or {@link Context.IntKey}, is set to the unboxed value.
+   */
+  static Node<Key<?>, Object> createPrimitive(
+      @Nullable Node<Key<?>, Object> root, Key<?> key, long bits) {
+    if (root instanceof DeltaNode) {
+      DeltaNode delta = (DeltaNode) root;
+      Node<Key<?>, Object> flattened = delta.flattened;
+      if (flattened != null) {
+        root = flattened;
+      } else {
+        DeltaNode shadowed = delta.findDelta(key);
+        if (shadowed != null) {
+          root = delta.without(shadowed);
+        } else if (delta.depth >= MAX_DEPTH) {
+          // Rather than box the value into the trie
+          root = delta.flattened();
+        }
+      }
+    }
+    return new DeltaNode(key, null, true, bits, root);
+  }
+
+  // Copies the deltas above the removed one over its parent
+  @Nullable
+  private Node<Key<?>, Object> without(DeltaNode removed) {
+    if (this == removed) {
+      return parent;
+    }
+    return withParent(((DeltaNode) parent).without(removed));
+  }
+
+  /** Returns the trie with the entries of {@code root} if it is a delta, or else {@code root}. */
+  @Nullable
+  static Node<Key<?>, Object> flatten(@Nullable Node<Key<?>, Object> root) {
+    if (root instanceof DeltaNode) {
+      return ((DeltaNode) root).flattened();
+    }
+    return root;
+  }
+
+  Node<Key<?>, Object> flattened() {
+    Node<Key<?>, Object> flattened = this.flattened;
+    if (flattened != null) {
+      return flattened;
+    }
+    // Collect the entries down to a node that is not a delta or is flattened
+    Key<?>[] keys = new Key<?>[depth];
+    Object[] values = new Object[depth];
+    int count = 0;
+    Node<Key<?>, Object> node = this;
+    while (node instanceof DeltaNode && ((DeltaNode) node).flattened == null) {
+      DeltaNode delta = (DeltaNode) node;
+      keys[count] = delta.key;
+      values[count] = delta.value();
+      count++;
+      node = delta.parent;
+    }
+    if (node instanceof DeltaNode) {
+      node = ((DeltaNode) node).flattened;
+    }
+    flattened = PersistentHashArrayMappedTrie.putAll(node, keys, values, count);
+    this.flattened = flattened;
+    return flattened;
+  }
+
+  // VisibleForTesting
+  boolean isFlattened() {
+    return flattened != null;
+  }
+
+  /**
+   * Returns the delta of the chain with the key, or else the node to look the key up in, which is
+   * the trie this delta was flattened to or the node below the chain.
+   */
+  Node<Key<?>, Object> find(Key<?> key) {
+    Node<Key<?>, Object> flattened = this.flattened;
+    if (flattened != null) {
+      return flattened;
+    }
+    Node<Key<?>, Object> node = this;
+    do {
+      DeltaNode delta = (DeltaNode) node;
+      if (delta.key == key) {
+        return delta;
+      }
+      node = delta.parent;
+    } while (node instanceof DeltaNode);
+    return node;
+  }
+
+  /** Returns the delta of the chain with the key, or {@code null}. */
+  @Nullable
+  DeltaNode findDelta(Key<?> key) {
+    Node<Key<?>, Object> node = this;
+    do {
+      DeltaNode delta = (DeltaNode) node;
+      if (delta.key == key) {
+        return delta;
+      }
+      node = delta.parent;
+    } while (node instanceof DeltaNode);
+    return null;
+  }
+
+  /**
+   * Returns the node with the entries the chain does not set, which is the trie this delta was
+   * flattened to, as it has the same values for the keys of the chain, or the node below the chain.
+   */
+  @Nullable
+  Node<Key<?>, Object> below() {
+    Node<Key<?>, Object> flattened = this.flattened;
+    if (flattened != null) {
+      return flattened;
+    }
+    Node<Key<?>, Object> node = parent;
+    while (node instanceof DeltaNode) {
+      node = ((DeltaNode) node).parent;
+    }
+    return node;
+  }
+
+  @Nullable
+  Object value() {
+    Object value = this.value;
+    if (value == null && primitive) {
+      // Not a conditional expression, which would unbox both and box a Long
+      if (key instanceof Context.IntKey) {
+        value = Integer.valueOf((int) bits);
+      } else {
+        value = Long.valueOf(bits);
+      }
+      this.value = value;
+    }
+    return value;
+  }
+
+  /** Whether the value is stored unboxed, as {@link #bits}. */
+  boolean isPrimitive() {
+    return primitive;
+  }
+
+  /** Returns the unboxed value, if {@link #isPrimitive}. */
+  long bits() {
+    return bits;
+  }
+
+  /**
+   * Calls the visitor with each entry of {@code root}, like {@link Node#forEach}. The entries of a
+   * chain of deltas are visited first, and then those below it whose keys the chain does not set,
+   * without wrapping the visitor.
+   */
+  static void forEachEntry(@Nullable Node<Key<?>, Object> root, ChainVisitor visitor) {
+    visitor.shadowing = null;
+    if (root instanceof DeltaNode) {
+      DeltaNode delta = (DeltaNode) root;
+      Node<Key<?>, Object> node = delta.flattened;
+      if (node == null) {
+        node = delta;
+        do {
+          DeltaNode d = (DeltaNode) node;
+          visitor.visit(d.key, d.value());
+          node = d.parent;
+        } while (node instanceof DeltaNode);
+        visitor.shadowing = delta;
+      }
+      root = node;
+    }
+    PersistentHashArrayMappedTrie.forEach(root, visitor);
+  }
+
+  /**
+   * A visitor of the entries of a root that may be a delta, which skips the entries a chain of
+   * deltas shadows itself, so that it does not need to be wrapped.
+   */
+  abstract static class ChainVisitor implements EntryVisitor<Key<?>, Object> {
+    // The chain whose keys are skipped once its entries have been visited
+    @Nullable private DeltaNode shadowing;
+
+    @Override
+    public final void visit(Key<?> key, @Nullable Object value) {
+      if (shadowing == null || shadowing.findDelta(key) == null) {
+        visitEntry(key, value);
+      }
+    }
+
+    abstract void visitEntry(Key<?> key, @Nullable Object value);
+  }
+
+  @Override
+  int size() {
+    Node<Key<?>, Object> flattened = this.flattened;
+    if (flattened != null) {
+      return flattened.size();
+    }
+    Node<Key<?>, Object> below = below();
+    int size = below == null ? 0 : below.size();
+    Node<Key<?>, Object> node = this;
+    do {
+      DeltaNode delta = (DeltaNode) node;
+      if (!PersistentHashArrayMappedTrie.containsKey(below, delta.key)) {
+        size++;
+      }
+      node = delta.parent;
+    } while (node instanceof DeltaNode);
+    return size;
+  }
+
+  @Override
+  long retainedBytes(MemoryLayout layout) {
+    long bytes = 0;
+    // The topmost trie a delta was flattened to, which shares most of its nodes with the node below
+    // the chain and the tries below it, so only it is counted
+    Node<Key<?>, Object> trie = null;
+    Node<Key<?>, Object> node = this;
+    do {
+      DeltaNode delta = (DeltaNode) node;
+      // The content hash, the depth, the bits and the primitive flag; values are counted by the
+      // context
+      bytes += layout.objectBytes(4, 17);
+      if (trie == null) {
+        trie = delta.flattened;
+      }
+      // Deltas below a flattened one are still reachable through the parents
+      node = delta.parent;
+    } while (node instanceof DeltaNode);
+    return bytes + PersistentHashArrayMappedTrie.retainedBytes(trie != null ? trie : node, layout);
+  }
+
+  @Override
+  @Nullable
+  Object get(Key<?> key, int hash, int bitsConsumed) {
+    Node<Key<?>, Object> node = find(key);
+    if (node instanceof DeltaNode) {
+      return ((DeltaNode) node).value();
+    }
+    return PersistentHashArrayMappedTrie.get(node, key);
+  }
+
+  @Override
+  Node<Key<?>, Object> put(Key<?> key, Object value, int hash, int bitsConsumed) {
+    return flattened().put(key, value, hash, bitsConsumed);
+  }
+
+  @Override
+  @Nullable
+  Node<Key<?>, Object> remove(Key<?> key, int hash, int bitsConsumed) {
+    if (findDelta(key) == null && !PersistentHashArrayMappedTrie.containsKey(below(), key)) {
+      return this;
+    }
+    return flattened().remove(key, hash, bitsConsumed);
+  }
+
+  @Override
+  void forEach(final EntryVisitor<? super Key<?>, ? super Object> visitor) {
+    forEachEntry(
+        this,
+        new ChainVisitor() {
+          @Override
+          void visitEntry(Key<?> key, @Nullable Object value) {
+            visitor.visit(key, value);
+          }
+        });
+  }
+
+  // Adjusts the cached hash of the node below the chain for the entries the chain sets
+  @Override
+  int computeContentHashCode() {
+    Node<Key<?>, Object> flattened = this.flattened;
+    if (flattened != null) {
+      return flattened.contentHashCode();
+    }
+    Node<Key<?>, Object> below = below();
+    int hash = PersistentHashArrayMappedTrie.contentHashCode(below);
+    Node<Key<?>, Object> node = this;
+    do {
+      DeltaNode delta = (DeltaNode) node;
+      Object oldValue = PersistentHashArrayMappedTrie.get(below, delta.key);
+      if (oldValue != null || PersistentHashArrayMappedTrie.containsKey(below, delta.key)) {
+        hash -= PersistentHashArrayMappedTrie.entryContentHashCode(delta.key, oldValue);
+      }
+      hash += PersistentHashArrayMappedTrie.entryContentHashCode(delta.key, delta.value());
+      node = delta.parent;
+    } while (node instanceof DeltaNode);
+    return hash;
+  }
+
+  @Override
+  int shallowHashCode() {
+    return flattened().shallowHashCode();
+  }
+
+  @Override
+  boolean shallowEquals(Node<?, ?> other) {
+    return flattened().shallowEquals(other);
+  }
+
+  @Override
+  public String toString() {
+    return String.format("DeltaNode(key=%s value=%s depth=%d)", key, value(), depth);
+  }
+}
@@ -0,0 +1,35 @@
+/*
+ * Copyright 2020, Propagation.io Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.propagation.context;
+
+import javax.annotation.Nullable;
+
+/**
+ * Receives the differences between an older and a newer set of entries, for example from {@link
+ * Context#diff}. Values are compared by identity, and are passed as arguments so that no entry
+ * object needs to be allocated.
+ */
+public interface DiffVisitor<K, V> {
+  /** Called for each entry that only the newer set has, in no particular order. */
+  void added(K key, @Nullable V value);
+
+  /** Called for each key whose value differs between the sets, in no particular order. */
+  void changed(K key, @Nullable V oldValue, @Nullable V newValue);
+
+  /** Called for each entry that only the older set has, in no particular order. */
+  void removed(K key, @Nullable V oldValue);
+}
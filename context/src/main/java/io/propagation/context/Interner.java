@@ -0,0 +1,114 @@
+/*
+ * Copyright 2020, Propagation.io Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.propagation.context;
+
+import io.propagation.context.Context.Key;
+import io.propagation.context.PersistentHashArrayMappedTrie.CompressedIndex;
+import io.propagation.context.PersistentHashArrayMappedTrie.Node;
+import java.lang.ref.WeakReference;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import javax.annotation.Nullable;
+
+/**
+ * Canonicalizes contexts, and the nodes of their storage, so that contexts with equal values share
+ * their memory. Nodes are interned bottom-up, so that equal children are already the same objects
+ * when their parents are compared.
+ *
+ * <p>Interned objects are held in a fixed-size, direct-mapped table of weak references: an object
+ * replaces whichever one was in its slot, and the table never keeps an object reachable. Lookups
+ * that miss because of this only cost sharing, not correctness.
+ */
+final class Interner {
+  // VisibleForTesting
+  static final int TABLE_SIZE = 4096;
+
+  static final Interner INSTANCE = new Interner(TABLE_SIZE);
+
+  // Slots of contexts are offset from those of nodes with the same hash
+  private static final int CONTEXT_SALT = 0x5BD1E995;
+
+  private final AtomicReferenceArray<WeakReference<Object>> table;
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+
+  Interner(int size) {
+    assert Integer.bitCount(size) == 1;
+    table = new AtomicReferenceArray<>(size);
+  }
+
+  /** Returns a context with the same values, which is shared with other interned contexts. */
+  Context intern(Context context) {
+    Node<Key<?>, Object> flattened = DeltaNode.flatten(context.keyValueEntries);
+    Node<Key<?>, Object> entries = intern(flattened);
+    if (entries == null) {
+      hits.incrementAndGet();
+      return Context.ROOT;
+    }
+    // Contexts are interned by their interned storage
+    int index = index(System.identityHashCode(entries) ^ CONTEXT_SALT);
+    Object existing = get(index);
+    if (existing instanceof Context
+        && DeltaNode.flatten(((Context) existing).keyValueEntries) == entries) {
+      hits.incrementAndGet();
+      return (Context) existing;
+    }
+    misses.incrementAndGet();
+    Context interned =
+        entries == flattened ? context : new Context(context, entries, context.keySummary);
+    table.set(index, new WeakReference<Object>(interned));
+    return interned;
+  }
+
+  /** Returns an equal node, which is shared with other interned nodes. */
+  @Nullable
+  <K, V> Node<K, V> intern(@Nullable Node<K, V> node) {
+    if (node == null) {
+      return null;
+    }
+    if (node instanceof CompressedIndex) {
+      node = ((CompressedIndex<K, V>) node).internChildren(this);
+    }
+    int index = index(node.shallowHashCode());
+    Object existing = get(index);
+    if (existing instanceof Node && node.shallowEquals((Node<?, ?>) existing)) {
+      @SuppressWarnings("unchecked")
+      Node<K, V> interned = (Node<K, V>) existing;
+      return interned;
+    }
+    table.set(index, new WeakReference<Object>(node));
+    return node;
+  }
+
+  /** Returns the fraction of interned contexts that were already in the table. */
+  double hitRate() {
+    long hits = this.hits.get();
+    long total = hits + misses.get();
+    return total == 0 ? 0 : (double) hits / total;
+  }
+
+  @Nullable
+  private Object get(int index) {
+    WeakReference<Object> ref = table.get(index);
+    return ref == null ? null : ref.get();
+  }
+
+  private int index(int hash) {
+    // Spread the high bits, as the table is indexed by the low bits
+    return (hash ^ (hash >>> 16)) & (table.length() - 1);
+  }
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright 2020, Propagation.io Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.propagation.context;
+
+import javax.annotation.Nullable;
+
+/**
+ * A value stored in a context in place of one set with {@link Context#withLazyValue}, which
+ * computes it at most once, when first read. It is shared by the contexts derived from the one it
+ * was set in, so they compute it at most once between them.
+ *
+ * <p>It is compared by identity, so that interning a context does not compute it. {@link
+ * Context#contentEquals} and {@link Context#contentHashCode} unwrap it, and compare and hash the
+ * computed value instead.
+ */
+final class LazyValue {
+  // Null once the value has been computed, which publishes it
+  @Nullable private volatile ValueSupplier<?> supplier;
+  @Nullable private Object value;
+
+  LazyValue(ValueSupplier<?> supplier) {
+    this.supplier = supplier;
+  }
+
+  /** Returns the value, computing it if it has not been yet. */
+  @Nullable
+  Object get() {
+    if (supplier != null) {
+      synchronized (this) {
+        ValueSupplier<?> supplier = this.supplier;
+        if (supplier != null) {
+          value = supplier.get();
+          // Releases the supplier and what it captured
+          this.supplier = null;
+        }
+      }
+    }
+    return value;
+  }
+
+  /** Returns the computed value if {@code value} is lazy, or else {@code value}. */
+  @Nullable
+  static Object unwrap(@Nullable Object value) {
+    if (value instanceof LazyValue) {
+      return ((LazyValue) value).get();
+    }
+    return value;
+  }
+
+  @Override
+  public String toString() {
+    if (supplier != null) {
+      return "LazyValue(<not computed>)";
+    }
+    return String.valueOf(value);
+  }
+}
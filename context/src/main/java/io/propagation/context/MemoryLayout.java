@@ -0,0 +1,114 @@
+/*
+ * Copyright 2020, Propagation.io Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.propagation.context;
+
+/**
+ * Assumptions about how objects are laid out in the heap, for estimating the memory retained by
+ * contexts. Fields are assumed to be packed without gaps and objects to be aligned to 8 bytes, as
+ * they are by default on HotSpot.
+ */
+final class MemoryLayout {
+  /** 32-bit JVMs and Android, whose heap references are 32 bits even on 64-bit devices. */
+  static final MemoryLayout BITS_32 = new MemoryLayout(8, 12, 4);
+
+  /** 64-bit JVMs with compressed oops, the default for heaps smaller than 32 GiB. */
+  static final MemoryLayout COMPRESSED_OOPS = new MemoryLayout(12, 16, 4);
+
+  /** 64-bit JVMs without compressed oops. */
+  static final MemoryLayout UNCOMPRESSED_OOPS = new MemoryLayout(16, 24, 8);
+
+  static final MemoryLayout DEFAULT = detect();
+
+  private static final int ALIGNMENT = 8;
+
+  private final int objectHeaderBytes;
+  // Including the length, and the padding before the elements
+  private final int arrayHeaderBytes;
+  private final int referenceBytes;
+
+  private MemoryLayout(int objectHeaderBytes, int arrayHeaderBytes, int referenceBytes) {
+    this.objectHeaderBytes = objectHeaderBytes;
+    this.arrayHeaderBytes = arrayHeaderBytes;
+    this.referenceBytes = referenceBytes;
+  }
+
+  /** Returns the size of an object with the specified fields. */
+  long objectBytes(int references, int primitiveBytes) {
+    return align(objectHeaderBytes + (long) references * referenceBytes + primitiveBytes);
+  }
+
+  /** Returns the size of an array of references. */
+  long arrayBytes(int length) {
+    return align(arrayHeaderBytes + (long) length * referenceBytes);
+  }
+
+  /** Returns the size of an array of primitives, each of {@code elementBytes}. */
+  long arrayBytes(int length, int elementBytes) {
+    return align(arrayHeaderBytes + (long) length * elementBytes);
+  }
+
+  /**
+   * Returns the shallow size of a value, and of the array holding the characters of a {@code
+   * String}. Only the header of objects of other types is counted, as their fields are unknown.
+   */
+  long valueBytes(Object value) {
+    if (value == null) {
+      return 0;
+    }
+    if (value instanceof String) {
+      return objectBytes(1, 4) + arrayBytes(((String) value).length(), 2);
+    }
+    if (value instanceof Long || value instanceof Double) {
+      return objectBytes(0, 8);
+    }
+    if (value instanceof Integer
+        || value instanceof Boolean
+        || value instanceof Character
+        || value instanceof Float
+        || value instanceof Short
+        || value instanceof Byte) {
+      return objectBytes(0, 4);
+    }
+    if (value instanceof byte[]) {
+      return arrayBytes(((byte[]) value).length, 1);
+    }
+    if (value instanceof Object[]) {
+      return arrayBytes(((Object[]) value).length);
+    }
+    return objectBytes(0, 0);
+  }
+
+  private static long align(long bytes) {
+    return (bytes + ALIGNMENT - 1) & -ALIGNMENT;
+  }
+
+  private static MemoryLayout detect() {
+    try {
+      if ("32".equals(System.getProperty("sun.arch.data.model"))
+          || "Dalvik".equals(System.getProperty("java.vm.name"))) {
+        return BITS_32;
+      }
+    } catch (SecurityException e) {
+      // Assume the most common layout
+    }
+    // HotSpot compresses oops by default if they can address the whole heap
+    if (Runtime.getRuntime().maxMemory() < 32L << 30) {
+      return COMPRESSED_OOPS;
+    }
+    return UNCOMPRESSED_OOPS;
+  }
+}
@@ -0,0 +1,205 @@
+/*
+ * Copyright 2020, Propagation.io Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.propagation.context;
+
+import io.propagation.context.Context.Key;
+import io.propagation.context.PersistentHashArrayMappedTrie.Node;
+import java.util.Arrays;
+import javax.annotation.Nullable;
+
+/**
+ * A root {@link Node} for contexts whose keys all have a small {@link Key#ordinal}. Entries are
+ * found with a single bitmap test on the ordinal and one array load, without hashing. It is
+ * promoted to a {@link PersistentHashArrayMappedTrie} once a key does not fit or it would hold more
+ * than {@link #MAX_SIZE} entries.
+ *
+ * <p>Only used when enabled with the {@value #ENABLED_PROPERTY} system property, as it benefits
+ * only applications that create their keys once, up front.
+ */
+final class OrdinalIndex extends Node<Key<?>, Object> {
+  static final String ENABLED_PROPERTY = "io.propagation.context.keySlots";
+
+  static final boolean ENABLED = isEnabled();
+
+  // Bounds the copy performed by each put
+  // VisibleForTesting
+  static final int MAX_SIZE = 16;
+
+  // Bitmap of the ordinals present
+  final long bitmap;
+  // Keys at even indices, each followed by its value, ordered by ordinal
+  private final Object[] keysAndValues;
+
+  OrdinalIndex(Key<?> key, Object value) {
+    this(1L << key.ordinal, new Object[] {key, value});
+    assert fits(key);
+  }
+
+  private OrdinalIndex(long bitmap, Object[] keysAndValues) {
+    this.bitmap = bitmap;
+    this.keysAndValues = keysAndValues;
+  }
+
+  /**
+   * Returns a new root {@code Node} with the specified entry, which is an {@code OrdinalIndex} if
+   * enabled and the key fits.
+   */
+  static Node<Key<?>, Object> create(Key<?> key, Object value) {
+    if (ENABLED && fits(key)) {
+      return new OrdinalIndex(key, value);
+    }
+    return PersistentHashArrayMappedTrie.<Key<?>, Object>put(null, key, value);
+  }
+
+  private static boolean fits(Key<?> key) {
+    return (key.ordinal & ~0x3F) == 0;
+  }
+
+  @Override
+  int size() {
+    return keysAndValues.length / 2;
+  }
+
+  @Override
+  long retainedBytes(MemoryLayout layout) {
+    return layout.objectBytes(1, 12) + layout.arrayBytes(keysAndValues.length);
+  }
+
+  /** Returns the value with the specified key, or {@code null} if it does not exist. */
+  @Nullable
+  Object get(Key<?> key) {
+    if (!fits(key)) {
+      return null;
+    }
+    long indexBit = 1L << key.ordinal;
+    if ((bitmap & indexBit) == 0) {
+      return null;
+    }
+    return keysAndValues[index(indexBit) + 1];
+  }
+
+  @Override
+  @Nullable
+  Object get(Key<?> key, int hash, int bitsConsumed) {
+    return get(key);
+  }
+
+  @Override
+  Node<Key<?>, Object> put(Key<?> key, Object value, int hash, int bitsConsumed) {
+    if (fits(key)) {
+      long indexBit = 1L << key.ordinal;
+      int index = index(indexBit);
+      if ((bitmap & indexBit) != 0) {
+        // Replace
+        Object[] newKeysAndValues = Arrays.copyOf(keysAndValues, keysAndValues.length);
+        newKeysAndValues[index + 1] = value;
+        return new OrdinalIndex(bitmap, newKeysAndValues);
+      } else if (size() < MAX_SIZE) {
+        // Insert
+        Object[] newKeysAndValues = new Object[keysAndValues.length + 2];
+        System.arraycopy(keysAndValues, 0, newKeysAndValues, 0, index);
+        newKeysAndValues[index] = key;
+        newKeysAndValues[index + 1] = value;
+        System.arraycopy(
+            keysAndValues, index, newKeysAndValues, index + 2, keysAndValues.length - index);
+        return new OrdinalIndex(bitmap | indexBit, newKeysAndValues);
+      }
+    }
+    // Promote
+    Node<Key<?>, Object> node = null;
+    for (int i = 0; i < keysAndValues.length; i += 2) {
+      node =
+          PersistentHashArrayMappedTrie.put(node, (Key<?>) keysAndValues[i], keysAndValues[i + 1]);
+    }
+    return PersistentHashArrayMappedTrie.put(node, key, value);
+  }
+
+  @Override
+  @Nullable
+  Node<Key<?>, Object> remove(Key<?> key, int hash, int bitsConsumed) {
+    if (!fits(key)) {
+      return this;
+    }
+    long indexBit = 1L << key.ordinal;
+    if ((bitmap & indexBit) == 0) {
+      return this;
+    }
+    if (keysAndValues.length == 2) {
+      return null;
+    }
+    int index = index(indexBit);
+    Object[] newKeysAndValues = new Object[keysAndValues.length - 2];
+    System.arraycopy(keysAndValues, 0, newKeysAndValues, 0, index);
+    System.arraycopy(
+        keysAndValues, index + 2, newKeysAndValues, index, keysAndValues.length - index - 2);
+    return new OrdinalIndex(bitmap ^ indexBit, newKeysAndValues);
+  }
+
+  @Override
+  void forEach(EntryVisitor<? super Key<?>, ? super Object> visitor) {
+    for (int i = 0; i < keysAndValues.length; i += 2) {
+      visitor.visit((Key<?>) keysAndValues[i], keysAndValues[i + 1]);
+    }
+  }
+
+  @Override
+  int computeContentHashCode() {
+    return PersistentHashArrayMappedTrie.entriesContentHashCode(
+        keysAndValues, keysAndValues.length);
+  }
+
+  @Override
+  int shallowHashCode() {
+    return PersistentHashArrayMappedTrie.entriesHashCode(keysAndValues, keysAndValues.length);
+  }
+
+  @Override
+  boolean shallowEquals(Node<?, ?> other) {
+    if (!(other instanceof OrdinalIndex)) {
+      return false;
+    }
+    OrdinalIndex index = (OrdinalIndex) other;
+    return bitmap == index.bitmap
+        && PersistentHashArrayMappedTrie.entriesEqual(
+            keysAndValues, index.keysAndValues, keysAndValues.length);
+  }
+
+  private int index(long indexBit) {
+    return 2 * Long.bitCount(bitmap & (indexBit - 1));
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder valuesSb = new StringBuilder();
+    valuesSb
+        .append("OrdinalIndex(")
+        .append(String.format("bitmap=%s ", Long.toBinaryString(bitmap)));
+    for (int i = 0; i < keysAndValues.length; i += 2) {
+      valuesSb.append("(key=").append(keysAndValues[i]);
+      valuesSb.append(" value=").append(keysAndValues[i + 1]).append(") ");
+    }
+    return valuesSb.append(")").toString();
+  }
+
+  private static boolean isEnabled() {
+    try {
+      return Boolean.getBoolean(ENABLED_PROPERTY);
+    } catch (SecurityException e) {
+      return false;
+    }
+  }
+}
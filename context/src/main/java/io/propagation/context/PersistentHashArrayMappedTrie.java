@@ -20,27 +20,64 @@ import java.util.Arrays;
 import javax.annotation.Nullable;
 
 /**
- * A persistent (copy-on-write) hash tree/trie. Collisions are handled linearly. Delete is not
- * supported, but replacement is. The implementation favors simplicity and low memory allocation
- * during insertion. Although the asymptotics are good, it is optimized for small sizes like less
- * than 20; "unbelievably large" would be 100.
+ * A persistent (copy-on-write) hash tree/trie. Collisions are handled linearly. Replacement and
+ * delete are supported; nodes left with a single entry by a delete are collapsed into their parent.
+ * The implementation favors simplicity and low memory allocation during insertion. Although the
+ * asymptotics are good, it is optimized for small sizes like less than 20; "unbelievably large"
+ * would be 100.
  *
- * <p>Inspired by popcnt-based compression seen in Ideal Hash Trees, Phil Bagwell (2000). The rest
- * of the implementation is ignorant of/ignores the paper.
+ * <p>Inspired by popcnt-based compression seen in Ideal Hash Trees, Phil Bagwell (2000). Interior
+ * nodes store their entries inline next to their children, as in the CHAMP encoding of Optimizing
+ * Hash-Array Mapped Tries for Fast and Lean Immutable JVM Collections, Steindorfer and Vinju
+ * (2015), so that a lookup does not need to dereference a separate object per entry. Paths are
+ * compressed, so that hashes sharing their low bits do not need a chain of single-child nodes. The
+ * rest of the implementation is ignorant of/ignores the papers.
  */
 final class PersistentHashArrayMappedTrie {
 
   private PersistentHashArrayMappedTrie() {}
 
-  /** Returns the value with the specified key, or {@code null} if it does not exist. */
+  /**
+   * Returns the value with the specified key, or {@code null} if it does not exist. Compressed
+   * indices are descended in a loop rather than through {@link Node#get}, so that lookups inline
+   * into their callers instead of making a megamorphic, recursive call per level. The roots of
+   * small contexts are tested for by their final classes too, so that their calls are bound
+   * statically and inlined as well. Chains of deltas are resolved by {@link Context.Key#get}.
+   */
   @Nullable
   static <K, V> V get(Node<K, V> root, K key) {
+    if (root instanceof CompressedIndex) {
+      return CompressedIndex.get((CompressedIndex<K, V>) root, key, key.hashCode());
+    }
+    if (root instanceof LinearLeaf) {
+      return ((LinearLeaf<K, V>) root).get(key, 0, 0);
+    }
+    if (root instanceof Leaf) {
+      return ((Leaf<K, V>) root).get(key, 0, 0);
+    }
     if (root == null) {
       return null;
     }
     return root.get(key, key.hashCode(), 0);
   }
 
+  /**
+   * Writes the value of each key, or {@code null}, to {@code out} at the key's position. The keys
+   * must be sorted in trie order with their hashes, as by {@link #sortInTrieOrder}, so that each
+   * compressed index is visited once for all the keys below it.
+   */
+  static <K, V> void getAll(
+      @Nullable Node<K, V> root, K[] keys, int[] hashes, int[] positions, Object[] out) {
+    if (root instanceof CompressedIndex) {
+      CompressedIndex.getAll(
+          (CompressedIndex<K, V>) root, keys, hashes, positions, 0, keys.length, out);
+      return;
+    }
+    for (int i = 0; i < keys.length; i++) {
+      out[positions[i]] = root == null ? null : root.get(keys[i], hashes[i], 0);
+    }
+  }
+
   /** Returns a new root {@code Node} where the key is set to the specified value. */
   static <K, V> Node<K, V> put(Node<K, V> root, K key, V value) {
     if (root == null) {
@@ -50,6 +87,372 @@ final class PersistentHashArrayMappedTrie {
     }
   }
 
+  /**
+   * Returns a new root {@code Node} without the specified key, or {@code null} if it would be
+   * empty.
+   */
+  @Nullable
+  static <K, V> Node<K, V> remove(@Nullable Node<K, V> root, K key) {
+    if (root == null) {
+      return null;
+    }
+    return root.remove(key, key.hashCode(), 0);
+  }
+
+  /**
+   * Returns an estimate of the bytes of the nodes reachable from the root, not including keys and
+   * values, which are typically shared with other roots.
+   */
+  static long retainedBytes(@Nullable Node<?, ?> root, MemoryLayout layout) {
+    return root == null ? 0 : root.retainedBytes(layout);
+  }
+
+  /** Calls the visitor with each entry. */
+  static <K, V> void forEach(
+      @Nullable Node<K, V> root, EntryVisitor<? super K, ? super V> visitor) {
+    if (root != null) {
+      root.forEach(visitor);
+    }
+  }
+
+  /**
+   * Returns a root {@code Node} with the entries of both roots, where those of {@code overlay} take
+   * precedence. Subtrees that are identical or only present in one of the roots are shared rather
+   * than copied, so the cost is proportional to the differences between the roots.
+   */
+  @Nullable
+  static <K, V> Node<K, V> merge(@Nullable Node<K, V> base, @Nullable Node<K, V> overlay) {
+    if (base == null) {
+      return overlay;
+    }
+    if (overlay == null) {
+      return base;
+    }
+    return merge(base, overlay, 0);
+  }
+
+  // Merges nodes whose parents have consumed bitsConsumed bits of their hashes
+  private static <K, V> Node<K, V> merge(Node<K, V> base, Node<K, V> overlay, int bitsConsumed) {
+    if (base == overlay) {
+      return base;
+    }
+    if (base instanceof CompressedIndex && overlay instanceof CompressedIndex) {
+      return CompressedIndex.merge(
+          (CompressedIndex<K, V>) base, (CompressedIndex<K, V>) overlay, bitsConsumed);
+    }
+    // Add the entries of the smaller node to the other
+    if (overlay.size() <= base.size()) {
+      PutVisitor<K, V> visitor = new PutVisitor<>(base, bitsConsumed, false);
+      overlay.forEach(visitor);
+      return visitor.node;
+    }
+    PutVisitor<K, V> visitor = new PutVisitor<>(overlay, bitsConsumed, true);
+    base.forEach(visitor);
+    return visitor.node;
+  }
+
+  /** Puts each visited entry into a node. */
+  private static final class PutVisitor<K, V> implements EntryVisitor<K, V> {
+    Node<K, V> node;
+    private final int bitsConsumed;
+    private final boolean ifAbsent;
+
+    PutVisitor(Node<K, V> node, int bitsConsumed, boolean ifAbsent) {
+      this.node = node;
+      this.bitsConsumed = bitsConsumed;
+      this.ifAbsent = ifAbsent;
+    }
+
+    @Override
+    public void visit(K key, @Nullable V value) {
+      int hash = key.hashCode();
+      if (ifAbsent && containsKey(node, key, hash, bitsConsumed)) {
+        return;
+      }
+      node = node.put(key, value, hash, bitsConsumed);
+    }
+  }
+
+  /** Returns whether the key has a value, which may be {@code null}. */
+  static <K, V> boolean containsKey(@Nullable Node<K, V> root, K key) {
+    return root != null && containsKey(root, key, key.hashCode(), 0);
+  }
+
+  // Whether the node has the key, even if its value is null
+  private static <K, V> boolean containsKey(Node<K, V> node, K key, int hash, int bitsConsumed) {
+    // Values are rarely null, so a key is rarely looked up twice
+    return node.get(key, hash, bitsConsumed) != null
+        || node.remove(key, hash, bitsConsumed) != node;
+  }
+
+  /**
+   * Calls the visitor with each entry that {@code node} adds to, changes in or removes from {@code
+   * base}. Subtrees that are the same object in both roots are skipped, so the cost is proportional
+   * to the differences between the roots.
+   */
+  static <K, V> void diff(
+      @Nullable Node<K, V> base,
+      @Nullable Node<K, V> node,
+      DiffVisitor<? super K, ? super V> visitor) {
+    diff(base, node, 0, visitor);
+  }
+
+  // Diffs nodes whose parents have consumed bitsConsumed bits of their hashes
+  private static <K, V> void diff(
+      @Nullable Node<K, V> base,
+      @Nullable Node<K, V> node,
+      int bitsConsumed,
+      DiffVisitor<? super K, ? super V> visitor) {
+    if (base == node) {
+      return;
+    }
+    if (base == null) {
+      node.forEach(new DiffEntryVisitor<K, V>(null, bitsConsumed, false, visitor));
+      return;
+    }
+    if (node == null) {
+      base.forEach(new DiffEntryVisitor<K, V>(null, bitsConsumed, true, visitor));
+      return;
+    }
+    if (base instanceof CompressedIndex && node instanceof CompressedIndex) {
+      CompressedIndex.diff((CompressedIndex<K, V>) base, (CompressedIndex<K, V>) node, visitor);
+      return;
+    }
+    node.forEach(new DiffEntryVisitor<>(base, bitsConsumed, false, visitor));
+    base.forEach(new DiffEntryVisitor<>(node, bitsConsumed, true, visitor));
+  }
+
+  /** Reports each visited entry as added or changed, or as removed, relative to another node. */
+  private static final class DiffEntryVisitor<K, V> implements EntryVisitor<K, V> {
+    @Nullable private final Node<K, V> other;
+    private final int bitsConsumed;
+    private final boolean removed;
+    private final DiffVisitor<? super K, ? super V> visitor;
+
+    DiffEntryVisitor(
+        @Nullable Node<K, V> other,
+        int bitsConsumed,
+        boolean removed,
+        DiffVisitor<? super K, ? super V> visitor) {
+      this.other = other;
+      this.bitsConsumed = bitsConsumed;
+      this.removed = removed;
+      this.visitor = visitor;
+    }
+
+    @Override
+    public void visit(K key, @Nullable V value) {
+      int hash = key.hashCode();
+      if (removed) {
+        if (other == null || !containsKey(other, key, hash, bitsConsumed)) {
+          visitor.removed(key, value);
+        }
+      } else if (other == null || !containsKey(other, key, hash, bitsConsumed)) {
+        visitor.added(key, value);
+      } else {
+        V oldValue = other.get(key, hash, bitsConsumed);
+        if (oldValue != value) {
+          visitor.changed(key, oldValue, value);
+        }
+      }
+    }
+  }
+
+  /**
+   * Returns a new root {@code Node} where the keys are set to the specified values. Each node on
+   * the paths to the keys is copied once, instead of once per key as with repeated {@link #put}s.
+   * The first {@code count} keys must be distinct; they and their values are reordered.
+   */
+  static <K, V> Node<K, V> putAll(@Nullable Node<K, V> root, K[] keys, V[] values, int count) {
+    if (count == 0) {
+      return root;
+    }
+    if (root == null || root instanceof Leaf || root instanceof LinearLeaf) {
+      return LinearLeaf.putAll(root, keys, values, count);
+    }
+    if (root instanceof CompressedIndex) {
+      int[] hashes = new int[count];
+      sortInTrieOrder(keys, values, hashes, count);
+      return CompressedIndex.putAll(
+          (CompressedIndex<K, V>) root, keys, values, hashes, 0, count, 0);
+    }
+    for (int i = 0; i < count; i++) {
+      root = root.put(keys[i], values[i], keys[i].hashCode(), 0);
+    }
+    return root;
+  }
+
+  /**
+   * Sorts the entries in the order a depth-first walk of the trie would find them, so that the
+   * entries below each node are contiguous. Fills {@code hashes} with the hash of each key.
+   */
+  static <K, V> void sortInTrieOrder(K[] keys, V[] values, int[] hashes, int count) {
+    // Insertion sort, as batches are small
+    for (int i = 0; i < count; i++) {
+      K key = keys[i];
+      V value = values[i];
+      int hash = key.hashCode();
+      int order = trieOrder(hash);
+      int j = i;
+      for (; j > 0 && trieOrder(hashes[j - 1]) > order; j--) {
+        keys[j] = keys[j - 1];
+        values[j] = values[j - 1];
+        hashes[j] = hashes[j - 1];
+      }
+      keys[j] = key;
+      values[j] = value;
+      hashes[j] = hash;
+    }
+  }
+
+  // -1 if not found
+  private static int indexOf(Object[] keys, int from, int to, Object key) {
+    for (int i = from; i < to; i++) {
+      if (keyEquals(keys[i], key)) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  // Orders by the lowest 5 bit region of the hash first, then by the next and so on. Offset to
+  // compare as unsigned.
+  private static int trieOrder(int hash) {
+    int order = 0;
+    for (int bitsConsumed = 0; bitsConsumed < 32; bitsConsumed += 5) {
+      int bits = Math.min(5, 32 - bitsConsumed);
+      order = (order << bits) | ((hash >>> bitsConsumed) & ((1 << bits) - 1));
+    }
+    return order ^ Integer.MIN_VALUE;
+  }
+
+  /**
+   * Returns whether the roots have the same keys, with equal values. Subtrees that are the same
+   * object in both roots, or that have different sizes or content hashes, are not walked.
+   */
+  static <K, V> boolean contentEquals(@Nullable Node<K, V> root, @Nullable Node<K, V> other) {
+    if (root == other) {
+      return true;
+    }
+    if (root == null || other == null) {
+      return false;
+    }
+    return contentEquals(root, other, 0);
+  }
+
+  // Compares nodes whose parents have consumed bitsConsumed bits of their hashes
+  private static <K, V> boolean contentEquals(Node<K, V> node, Node<K, V> other, int bitsConsumed) {
+    if (node == other) {
+      return true;
+    }
+    if (node.size() != other.size() || node.contentHashCode() != other.contentHashCode()) {
+      return false;
+    }
+    if (node instanceof CompressedIndex && other instanceof CompressedIndex) {
+      CompressedIndex<K, V> index = (CompressedIndex<K, V>) node;
+      CompressedIndex<K, V> otherIndex = (CompressedIndex<K, V>) other;
+      if (index.hasSameLayout(otherIndex)) {
+        return index.contentEquals(otherIndex);
+      }
+    }
+    // Look up each entry, as both nodes have the same number of them
+    ContainsVisitor<K, V> visitor = new ContainsVisitor<>(other, bitsConsumed);
+    node.forEach(visitor);
+    return visitor.containsAll;
+  }
+
+  /** Checks whether a node has each visited entry. */
+  private static final class ContainsVisitor<K, V> implements EntryVisitor<K, V> {
+    private final Node<K, V> node;
+    private final int bitsConsumed;
+    boolean containsAll = true;
+
+    ContainsVisitor(Node<K, V> node, int bitsConsumed) {
+      this.node = node;
+      this.bitsConsumed = bitsConsumed;
+    }
+
+    @Override
+    public void visit(K key, @Nullable V value) {
+      if (!containsAll) {
+        return;
+      }
+      int hash = key.hashCode();
+      Object unwrapped = LazyValue.unwrap(value);
+      Object other = LazyValue.unwrap(node.get(key, hash, bitsConsumed));
+      if (unwrapped == null) {
+        containsAll = other == null && containsKey(node, key, hash, bitsConsumed);
+      } else {
+        containsAll = unwrapped.equals(other);
+      }
+    }
+  }
+
+  /** Returns the content hash of a root, which is 0 if it is {@code null}. */
+  static int contentHashCode(@Nullable Node<?, ?> root) {
+    return root == null ? 0 : root.contentHashCode();
+  }
+
+  // Hash of an entry for Node.contentHashCode, like that of Map.Entry, of the computed value if
+  // lazy
+  static int entryContentHashCode(Object key, @Nullable Object value) {
+    value = LazyValue.unwrap(value);
+    return key.hashCode() ^ (value == null ? 0 : value.hashCode());
+  }
+
+  // Sum of the hashes of the interleaved keys and values in [0, length) for Node.contentHashCode
+  static int entriesContentHashCode(Object[] keysAndValues, int length) {
+    int hash = 0;
+    for (int i = 0; i < length; i += 2) {
+      hash += entryContentHashCode(keysAndValues[i], keysAndValues[i + 1]);
+    }
+    return hash;
+  }
+
+  // Hash of an entry for Node.shallowHashCode
+  static int entryHashCode(Object key, @Nullable Object value) {
+    return 31 * System.identityHashCode(key) + (value == null ? 0 : value.hashCode());
+  }
+
+  // Hash of the interleaved keys and values in [0, length) for Node.shallowHashCode
+  static int entriesHashCode(Object[] keysAndValues, int length) {
+    int hash = 0;
+    for (int i = 0; i < length; i += 2) {
+      hash = 31 * hash + entryHashCode(keysAndValues[i], keysAndValues[i + 1]);
+    }
+    return hash;
+  }
+
+  // Whether the interleaved keys and values in [0, length) are the same for Node.shallowEquals
+  static boolean entriesEqual(Object[] keysAndValues, Object[] otherKeysAndValues, int length) {
+    for (int i = 0; i < length; i += 2) {
+      if (keysAndValues[i] != otherKeysAndValues[i]
+          || !valueEquals(keysAndValues[i + 1], otherKeysAndValues[i + 1])) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Returns whether keys are equal. Keys are compared with {@code equals}, after a test for
+   * identity, which is how {@link Context.Key}s, which do not override {@code equals}, are found.
+   */
+  static boolean keyEquals(Object key, Object otherKey) {
+    return key == otherKey || key.equals(otherKey);
+  }
+
+  private static boolean valueEquals(@Nullable Object value, @Nullable Object otherValue) {
+    return value == otherValue || (value != null && value.equals(otherValue));
+  }
+
+  // Compares the computed values of lazy values, for contentEquals
+  private static boolean contentValueEquals(@Nullable Object value, @Nullable Object otherValue) {
+    return value == otherValue
+        || valueEquals(LazyValue.unwrap(value), LazyValue.unwrap(otherValue));
+  }
+
+  // A single entry. Only used as a root, as CompressedIndex stores its entries inline.
   // Not actually annotated to avoid depending on guava
   // @VisibleForTesting
   static final class Leaf<K, V> extends Node<K, V> {
@@ -66,10 +469,15 @@ final class PersistentHashArrayMappedTrie {
       return 1;
     }
 
+    @Override
+    long retainedBytes(MemoryLayout layout) {
+      return layout.objectBytes(2, 4);
+    }
+
     @Override
     @Nullable
     V get(K key, int hash, int bitsConsumed) {
-      if (this.key == key) {
+      if (keyEquals(this.key, key)) {
         return value;
       } else {
         return null;
@@ -78,25 +486,261 @@ final class PersistentHashArrayMappedTrie {
 
     @Override
     Node<K, V> put(K key, V value, int hash, int bitsConsumed) {
-      int thisHash = this.key.hashCode();
-      if (thisHash != hash) {
-        // Insert
-        return CompressedIndex.combine(new Leaf<>(key, value), hash, this, thisHash, bitsConsumed);
-      } else if (this.key == key) {
+      if (keyEquals(this.key, key)) {
         // Replace
         return new Leaf<>(key, value);
       } else {
-        // Hash collision
-        return new CollisionLeaf<>(this.key, this.value, key, value);
+        // Insert
+        return new LinearLeaf<>(this.key, this.value, key, value);
       }
     }
 
+    @Override
+    @Nullable
+    Node<K, V> remove(K key, int hash, int bitsConsumed) {
+      if (keyEquals(this.key, key)) {
+        return null;
+      } else {
+        return this;
+      }
+    }
+
+    @Override
+    void forEach(EntryVisitor<? super K, ? super V> visitor) {
+      visitor.visit(key, value);
+    }
+
+    @Override
+    int computeContentHashCode() {
+      return entryContentHashCode(key, value);
+    }
+
+    @Override
+    int shallowHashCode() {
+      return entryHashCode(key, value);
+    }
+
+    @Override
+    boolean shallowEquals(Node<?, ?> other) {
+      if (!(other instanceof Leaf)) {
+        return false;
+      }
+      Leaf<?, ?> leaf = (Leaf<?, ?>) other;
+      return key == leaf.key && valueEquals(value, leaf.value);
+    }
+
     @Override
     public String toString() {
       return String.format("Leaf(key=%s value=%s)", key, value);
     }
   }
 
+  // A few entries in insertion order, found by a linear identity scan instead of hashing. Only used
+  // as a root; it is promoted to a CompressedIndex once it would hold more than MAX_SIZE entries.
+  // Not actually annotated to avoid depending on guava
+  // @VisibleForTesting
+  static final class LinearLeaf<K, V> extends Node<K, V> {
+    // Most contexts hold a handful of keys, for which a scan is cheaper than walking the bitmaps
+    static final int MAX_SIZE = 8;
+
+    // Keys at even indices, each followed by its value
+    private final Object[] keysAndValues;
+
+    LinearLeaf(K key1, V value1, K key2, V value2) {
+      this(new Object[] {key1, value1, key2, value2});
+      assert !keyEquals(key1, key2);
+    }
+
+    private LinearLeaf(Object[] keysAndValues) {
+      this.keysAndValues = keysAndValues;
+    }
+
+    @Override
+    int size() {
+      return keysAndValues.length / 2;
+    }
+
+    @Override
+    long retainedBytes(MemoryLayout layout) {
+      return layout.objectBytes(1, 4) + layout.arrayBytes(keysAndValues.length);
+    }
+
+    @Override
+    @Nullable
+    V get(K key, int hash, int bitsConsumed) {
+      for (int i = 0; i < keysAndValues.length; i += 2) {
+        if (keyEquals(keysAndValues[i], key)) {
+          return valueAt(i);
+        }
+      }
+      return null;
+    }
+
+    @Override
+    Node<K, V> put(K key, V value, int hash, int bitsConsumed) {
+      for (int i = 0; i < keysAndValues.length; i += 2) {
+        if (keyEquals(keysAndValues[i], key)) {
+          // Replace
+          Object[] newKeysAndValues = Arrays.copyOf(keysAndValues, keysAndValues.length);
+          newKeysAndValues[i + 1] = value;
+          return new LinearLeaf<>(newKeysAndValues);
+        }
+      }
+      if (size() < MAX_SIZE) {
+        // Insert
+        Object[] newKeysAndValues = Arrays.copyOf(keysAndValues, keysAndValues.length + 2);
+        newKeysAndValues[keysAndValues.length] = key;
+        newKeysAndValues[keysAndValues.length + 1] = value;
+        return new LinearLeaf<>(newKeysAndValues);
+      }
+      // Promote
+      Node<K, V> node =
+          CompressedIndex.combine(keyAt(0), valueAt(0), keyAt(0).hashCode(), key, value, hash, 0);
+      for (int i = 2; i < keysAndValues.length; i += 2) {
+        K k = keyAt(i);
+        node = node.put(k, valueAt(i), k.hashCode(), 0);
+      }
+      return node;
+    }
+
+    @Override
+    Node<K, V> remove(K key, int hash, int bitsConsumed) {
+      for (int i = 0; i < keysAndValues.length; i += 2) {
+        if (keyEquals(keysAndValues[i], key)) {
+          if (keysAndValues.length == 4) {
+            int other = 2 - i;
+            return new Leaf<>(keyAt(other), valueAt(other));
+          }
+          Object[] newKeysAndValues = new Object[keysAndValues.length - 2];
+          System.arraycopy(keysAndValues, 0, newKeysAndValues, 0, i);
+          System.arraycopy(keysAndValues, i + 2, newKeysAndValues, i, keysAndValues.length - i - 2);
+          return new LinearLeaf<>(newKeysAndValues);
+        }
+      }
+      return this;
+    }
+
+    @Override
+    void forEach(EntryVisitor<? super K, ? super V> visitor) {
+      for (int i = 0; i < keysAndValues.length; i += 2) {
+        visitor.visit(keyAt(i), valueAt(i));
+      }
+    }
+
+    /** Implements {@link PersistentHashArrayMappedTrie#putAll} for small roots. */
+    static <K, V> Node<K, V> putAll(@Nullable Node<K, V> root, K[] keys, V[] values, int count) {
+      Object[] keysAndValues;
+      if (root == null) {
+        keysAndValues = new Object[0];
+      } else if (root instanceof Leaf) {
+        Leaf<K, V> leaf = (Leaf<K, V>) root;
+        keysAndValues = new Object[] {leaf.key, leaf.value};
+      } else {
+        keysAndValues = ((LinearLeaf<K, V>) root).keysAndValues;
+      }
+      // Entries of the root that are not replaced go first, followed by the new ones
+      Object[] newKeysAndValues = new Object[keysAndValues.length + 2 * count];
+      int length = 0;
+      for (int i = 0; i < keysAndValues.length; i += 2) {
+        if (indexOf(keys, 0, count, keysAndValues[i]) == -1) {
+          newKeysAndValues[length++] = keysAndValues[i];
+          newKeysAndValues[length++] = keysAndValues[i + 1];
+        }
+      }
+      if (length / 2 + count > MAX_SIZE) {
+        // Promote
+        int size = length / 2 + count;
+        @SuppressWarnings("unchecked")
+        K[] allKeys = (K[]) new Object[size];
+        @SuppressWarnings("unchecked")
+        V[] allValues = (V[]) new Object[size];
+        for (int i = 0; i < length; i += 2) {
+          @SuppressWarnings("unchecked")
+          K key = (K) newKeysAndValues[i];
+          @SuppressWarnings("unchecked")
+          V value = (V) newKeysAndValues[i + 1];
+          allKeys[i / 2] = key;
+          allValues[i / 2] = value;
+        }
+        System.arraycopy(keys, 0, allKeys, length / 2, count);
+        System.arraycopy(values, 0, allValues, length / 2, count);
+        int[] hashes = new int[size];
+        sortInTrieOrder(allKeys, allValues, hashes, size);
+        return CompressedIndex.buildNode(allKeys, allValues, hashes, 0, size);
+      }
+      for (int i = 0; i < count; i++) {
+        newKeysAndValues[length++] = keys[i];
+        newKeysAndValues[length++] = values[i];
+      }
+      if (length == 2) {
+        @SuppressWarnings("unchecked")
+        K key = (K) newKeysAndValues[0];
+        @SuppressWarnings("unchecked")
+        V value = (V) newKeysAndValues[1];
+        return new Leaf<>(key, value);
+      }
+      return new LinearLeaf<>(Arrays.copyOf(newKeysAndValues, length));
+    }
+
+    @SuppressWarnings("unchecked")
+    private K keyAt(int index) {
+      return (K) keysAndValues[index];
+    }
+
+    @SuppressWarnings("unchecked")
+    private V valueAt(int index) {
+      return (V) keysAndValues[index + 1];
+    }
+
+    @Override
+    int computeContentHashCode() {
+      return entriesContentHashCode(keysAndValues, keysAndValues.length);
+    }
+
+    // As the entries are in insertion order, equal leaves may have them in different orders
+    @Override
+    int shallowHashCode() {
+      int hash = 0;
+      for (int i = 0; i < keysAndValues.length; i += 2) {
+        hash += entryHashCode(keysAndValues[i], keysAndValues[i + 1]);
+      }
+      return hash;
+    }
+
+    @Override
+    boolean shallowEquals(Node<?, ?> other) {
+      if (!(other instanceof LinearLeaf)) {
+        return false;
+      }
+      Object[] otherKeysAndValues = ((LinearLeaf<?, ?>) other).keysAndValues;
+      if (keysAndValues.length != otherKeysAndValues.length) {
+        return false;
+      }
+      for (int i = 0; i < keysAndValues.length; i += 2) {
+        int j = 0;
+        while (j < otherKeysAndValues.length && otherKeysAndValues[j] != keysAndValues[i]) {
+          j += 2;
+        }
+        if (j == otherKeysAndValues.length
+            || !valueEquals(keysAndValues[i + 1], otherKeysAndValues[j + 1])) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    @Override
+    public String toString() {
+      StringBuilder valuesSb = new StringBuilder();
+      valuesSb.append("LinearLeaf(");
+      for (int i = 0; i < keysAndValues.length; i += 2) {
+        valuesSb.append("(key=").append(keysAndValues[i]);
+        valuesSb.append(" value=").append(keysAndValues[i + 1]).append(") ");
+      }
+      return valuesSb.append(")").toString();
+    }
+  }
+
   // Not actually annotated to avoid depending on guava
   // @VisibleForTesting
   static final class CollisionLeaf<K, V> extends Node<K, V> {
@@ -109,7 +753,7 @@ final class PersistentHashArrayMappedTrie {
     @SuppressWarnings("unchecked")
     CollisionLeaf(K key1, V value1, K key2, V value2) {
       this((K[]) new Object[] {key1, key2}, (V[]) new Object[] {value1, value2});
-      assert key1 != key2;
+      assert !keyEquals(key1, key2);
       assert key1.hashCode() == key2.hashCode();
     }
 
@@ -123,11 +767,16 @@ final class PersistentHashArrayMappedTrie {
       return values.length;
     }
 
+    @Override
+    long retainedBytes(MemoryLayout layout) {
+      return layout.objectBytes(2, 4) + 2 * layout.arrayBytes(values.length);
+    }
+
     @Override
     @Nullable
     V get(K key, int hash, int bitsConsumed) {
       for (int i = 0; i < keys.length; i++) {
-        if (keys[i] == key) {
+        if (keyEquals(keys[i], key)) {
           return values[i];
         }
       }
@@ -140,7 +789,7 @@ final class PersistentHashArrayMappedTrie {
       int keyIndex;
       if (thisHash != hash) {
         // Insert
-        return CompressedIndex.combine(new Leaf<>(key, value), hash, this, thisHash, bitsConsumed);
+        return CompressedIndex.combine(this, thisHash, key, value, hash, bitsConsumed);
       } else if ((keyIndex = indexOfKey(key)) != -1) {
         // Replace
         K[] newKeys = Arrays.copyOf(keys, keys.length);
@@ -158,16 +807,78 @@ final class PersistentHashArrayMappedTrie {
       }
     }
 
+    @Override
+    Node<K, V> remove(K key, int hash, int bitsConsumed) {
+      int keyIndex = indexOfKey(key);
+      if (keyIndex == -1) {
+        return this;
+      }
+      if (keys.length == 2) {
+        // Leave the remaining entry for the parent to inline
+        return new Leaf<>(keys[1 - keyIndex], values[1 - keyIndex]);
+      }
+      K[] newKeys = Arrays.copyOf(keys, keys.length - 1);
+      V[] newValues = Arrays.copyOf(values, keys.length - 1);
+      if (keyIndex < newKeys.length) {
+        // Move the last entry into the hole
+        newKeys[keyIndex] = keys[newKeys.length];
+        newValues[keyIndex] = values[newKeys.length];
+      }
+      return new CollisionLeaf<>(newKeys, newValues);
+    }
+
+    @Override
+    void forEach(EntryVisitor<? super K, ? super V> visitor) {
+      for (int i = 0; i < keys.length; i++) {
+        visitor.visit(keys[i], values[i]);
+      }
+    }
+
     // -1 if not found
     private int indexOfKey(K key) {
       for (int i = 0; i < keys.length; i++) {
-        if (keys[i] == key) {
+        if (keyEquals(keys[i], key)) {
           return i;
         }
       }
       return -1;
     }
 
+    @Override
+    int computeContentHashCode() {
+      int hash = 0;
+      for (int i = 0; i < keys.length; i++) {
+        hash += entryContentHashCode(keys[i], values[i]);
+      }
+      return hash;
+    }
+
+    @Override
+    int shallowHashCode() {
+      int hash = 0;
+      for (int i = 0; i < keys.length; i++) {
+        hash = 31 * hash + entryHashCode(keys[i], values[i]);
+      }
+      return hash;
+    }
+
+    @Override
+    boolean shallowEquals(Node<?, ?> other) {
+      if (!(other instanceof CollisionLeaf)) {
+        return false;
+      }
+      CollisionLeaf<?, ?> leaf = (CollisionLeaf<?, ?>) other;
+      if (keys.length != leaf.keys.length) {
+        return false;
+      }
+      for (int i = 0; i < keys.length; i++) {
+        if (keys[i] != leaf.keys[i] || !valueEquals(values[i], leaf.values[i])) {
+          return false;
+        }
+      }
+      return true;
+    }
+
     @Override
     public String toString() {
       StringBuilder valuesSb = new StringBuilder();
@@ -185,13 +896,26 @@ final class PersistentHashArrayMappedTrie {
     private static final int BITS = 5;
     private static final int BITS_MASK = 0x1F;
 
-    final Node<K, V>[] values;
+    // CHAMP layout (Steindorfer and Vinju, 2015): key/value pairs are stored inline at the front of
+    // content, two slots per entry, while child nodes are stored at the back in reverse order.
+    // dataMap and nodeMap are disjoint bitmaps of which uncompressed indices hold which kind.
+    final Object[] content;
     private final int size;
-    final int bitmap;
+    final int dataMap;
+    final int nodeMap;
+    // Paths are compressed: rather than chaining nodes with a single child, a node indexes its
+    // entries by the first hash bits at which they differ. level is the number of hash bits below
+    // those, which may be more than the parent consumed, and prefix holds those bits.
+    final int level;
+    final int prefix;
 
-    private CompressedIndex(int bitmap, Node<K, V>[] values, int size) {
-      this.bitmap = bitmap;
-      this.values = values;
+    private CompressedIndex(
+        int level, int prefix, int dataMap, int nodeMap, Object[] content, int size) {
+      this.level = level;
+      this.prefix = prefix;
+      this.dataMap = dataMap;
+      this.nodeMap = nodeMap;
+      this.content = content;
       this.size = size;
     }
 
@@ -200,68 +924,761 @@ final class PersistentHashArrayMappedTrie {
       return size;
     }
 
+    @Override
+    long retainedBytes(MemoryLayout layout) {
+      long bytes = layout.objectBytes(1, 24) + layout.arrayBytes(content.length);
+      for (int i = 2 * Integer.bitCount(dataMap); i < content.length; i++) {
+        bytes += nodeAt(i).retainedBytes(layout);
+      }
+      return bytes;
+    }
+
+    // Looks up the keys in [from, to), sorted in trie order, descending once per child
+    static <K, V> void getAll(
+        CompressedIndex<K, V> index,
+        K[] keys,
+        int[] hashes,
+        int[] positions,
+        int from,
+        int to,
+        Object[] out) {
+      int groupFrom = from;
+      while (groupFrom < to) {
+        int indexBit = indexBit(hashes[groupFrom], index.level);
+        int groupTo = groupFrom + 1;
+        while (groupTo < to && indexBit(hashes[groupTo], index.level) == indexBit) {
+          groupTo++;
+        }
+        if ((index.dataMap & indexBit) != 0) {
+          int dataIndex = index.dataIndex(indexBit);
+          for (int i = groupFrom; i < groupTo; i++) {
+            out[positions[i]] =
+                keyEquals(index.content[dataIndex], keys[i]) ? index.valueAt(dataIndex) : null;
+          }
+        } else if ((index.nodeMap & indexBit) != 0) {
+          Node<K, V> node = index.nodeAt(index.nodeIndex(indexBit));
+          if (node instanceof CompressedIndex) {
+            getAll((CompressedIndex<K, V>) node, keys, hashes, positions, groupFrom, groupTo, out);
+          } else {
+            for (int i = groupFrom; i < groupTo; i++) {
+              out[positions[i]] = node.get(keys[i], hashes[i], index.level + BITS);
+            }
+          }
+        } else {
+          for (int i = groupFrom; i < groupTo; i++) {
+            out[positions[i]] = null;
+          }
+        }
+        groupFrom = groupTo;
+      }
+    }
+
+    // Descends iteratively, only calling Node.get for the collision leaves at the bottom
+    @Nullable
+    static <K, V> V get(CompressedIndex<K, V> index, K key, int hash) {
+      while (true) {
+        int indexBit = indexBit(hash, index.level);
+        if ((index.dataMap & indexBit) != 0) {
+          int dataIndex = index.dataIndex(indexBit);
+          if (keyEquals(index.content[dataIndex], key)) {
+            return index.valueAt(dataIndex);
+          }
+          return null;
+        }
+        if ((index.nodeMap & indexBit) == 0) {
+          return null;
+        }
+        Node<K, V> node = index.nodeAt(index.nodeIndex(indexBit));
+        if (!(node instanceof CompressedIndex)) {
+          return node.get(key, hash, index.level + BITS);
+        }
+        index = (CompressedIndex<K, V>) node;
+      }
+    }
+
     @Override
     @Nullable
     V get(K key, int hash, int bitsConsumed) {
-      int indexBit = indexBit(hash, bitsConsumed);
-      if ((bitmap & indexBit) == 0) {
+      // The skipped bits are not checked, as a key with other bits cannot be found anyway
+      int indexBit = indexBit(hash, level);
+      if ((dataMap & indexBit) != 0) {
+        int dataIndex = dataIndex(indexBit);
+        if (keyEquals(content[dataIndex], key)) {
+          return valueAt(dataIndex);
+        }
         return null;
       }
-      int compressedIndex = compressedIndex(indexBit);
-      return values[compressedIndex].get(key, hash, bitsConsumed + BITS);
+      if ((nodeMap & indexBit) != 0) {
+        return nodeAt(nodeIndex(indexBit)).get(key, hash, level + BITS);
+      }
+      return null;
     }
 
     @Override
     Node<K, V> put(K key, V value, int hash, int bitsConsumed) {
-      int indexBit = indexBit(hash, bitsConsumed);
-      int compressedIndex = compressedIndex(indexBit);
-      if ((bitmap & indexBit) == 0) {
-        // Insert
-        int newBitmap = bitmap | indexBit;
+      if (!hasPrefix(hash)) {
+        // Split the compressed path where the hash diverges
+        return combine(this, prefix, key, value, hash, bitsConsumed);
+      }
+      int indexBit = indexBit(hash, level);
+      if ((dataMap & indexBit) != 0) {
+        int dataIndex = dataIndex(indexBit);
         @SuppressWarnings("unchecked")
-        Node<K, V>[] newValues = (Node<K, V>[]) new Node<?, ?>[values.length + 1];
-        System.arraycopy(values, 0, newValues, 0, compressedIndex);
-        newValues[compressedIndex] = new Leaf<>(key, value);
+        K existingKey = (K) content[dataIndex];
+        if (keyEquals(existingKey, key)) {
+          // Replace
+          Object[] newContent = Arrays.copyOf(content, content.length);
+          newContent[dataIndex + 1] = value;
+          return new CompressedIndex<>(level, prefix, dataMap, nodeMap, newContent, size);
+        }
+        // Push both entries down into a new child node
+        Node<K, V> node =
+            combine(
+                existingKey,
+                valueAt(dataIndex),
+                existingKey.hashCode(),
+                key,
+                value,
+                hash,
+                level + BITS);
+        return copyAndMigrateToNode(indexBit, dataIndex, node);
+      } else if ((nodeMap & indexBit) != 0) {
+        // Replace
+        int nodeIndex = nodeIndex(indexBit);
+        Node<K, V> node = nodeAt(nodeIndex);
+        Node<K, V> newNode = node.put(key, value, hash, level + BITS);
+        Object[] newContent = Arrays.copyOf(content, content.length);
+        newContent[nodeIndex] = newNode;
+        return new CompressedIndex<>(
+            level, prefix, dataMap, nodeMap, newContent, size + newNode.size() - node.size());
+      } else {
+        // Insert
+        int dataIndex = dataIndex(indexBit);
+        Object[] newContent = new Object[content.length + 2];
+        System.arraycopy(content, 0, newContent, 0, dataIndex);
+        newContent[dataIndex] = key;
+        newContent[dataIndex + 1] = value;
+        System.arraycopy(content, dataIndex, newContent, dataIndex + 2, content.length - dataIndex);
+        return new CompressedIndex<>(
+            level, prefix, dataMap | indexBit, nodeMap, newContent, size + 1);
+      }
+    }
+
+    @Override
+    @Nullable
+    Node<K, V> remove(K key, int hash, int bitsConsumed) {
+      if (!hasPrefix(hash)) {
+        return this;
+      }
+      int indexBit = indexBit(hash, level);
+      if ((dataMap & indexBit) != 0) {
+        int dataIndex = dataIndex(indexBit);
+        if (!keyEquals(content[dataIndex], key)) {
+          return this;
+        }
+        if (size == 2 && nodeMap == 0) {
+          // Leave the remaining entry for the parent to inline
+          int other = 2 - dataIndex;
+          @SuppressWarnings("unchecked")
+          K otherKey = (K) content[other];
+          return new Leaf<>(otherKey, valueAt(other));
+        }
+        if (dataMap == indexBit && Integer.bitCount(nodeMap) == 1) {
+          // The child node can take the place of this one
+          return nodeAt(content.length - 1);
+        }
+        Object[] newContent = new Object[content.length - 2];
+        System.arraycopy(content, 0, newContent, 0, dataIndex);
         System.arraycopy(
-            values,
-            compressedIndex,
-            newValues,
-            compressedIndex + 1,
-            values.length - compressedIndex);
-        return new CompressedIndex<>(newBitmap, newValues, size() + 1);
+            content, dataIndex + 2, newContent, dataIndex, content.length - dataIndex - 2);
+        return new CompressedIndex<>(
+            level, prefix, dataMap ^ indexBit, nodeMap, newContent, size - 1);
+      } else if ((nodeMap & indexBit) != 0) {
+        int nodeIndex = nodeIndex(indexBit);
+        Node<K, V> node = nodeAt(nodeIndex);
+        Node<K, V> newNode = node.remove(key, hash, level + BITS);
+        if (newNode == node) {
+          return this;
+        }
+        if (newNode instanceof Leaf) {
+          Leaf<K, V> leaf = (Leaf<K, V>) newNode;
+          return copyAndMigrateToData(indexBit, nodeIndex, leaf.key, leaf.value);
+        }
+        Object[] newContent = Arrays.copyOf(content, content.length);
+        newContent[nodeIndex] = newNode;
+        return new CompressedIndex<>(level, prefix, dataMap, nodeMap, newContent, size - 1);
       } else {
-        // Replace
-        Node<K, V>[] newValues = Arrays.copyOf(values, values.length);
-        newValues[compressedIndex] =
-            values[compressedIndex].put(key, value, hash, bitsConsumed + BITS);
-        int newSize = size();
-        newSize += newValues[compressedIndex].size();
-        newSize -= values[compressedIndex].size();
-        return new CompressedIndex<>(bitmap, newValues, newSize);
+        return this;
       }
     }
 
-    static <K, V> Node<K, V> combine(
-        Node<K, V> node1, int hash1, Node<K, V> node2, int hash2, int bitsConsumed) {
-      assert hash1 != hash2;
-      int indexBit1 = indexBit(hash1, bitsConsumed);
-      int indexBit2 = indexBit(hash2, bitsConsumed);
-      if (indexBit1 == indexBit2) {
-        Node<K, V> node = combine(node1, hash1, node2, hash2, bitsConsumed + BITS);
+    @Override
+    void forEach(EntryVisitor<? super K, ? super V> visitor) {
+      int dataLength = 2 * Integer.bitCount(dataMap);
+      for (int i = 0; i < dataLength; i += 2) {
         @SuppressWarnings("unchecked")
-        Node<K, V>[] values = (Node<K, V>[]) new Node<?, ?>[] {node};
-        return new CompressedIndex<>(indexBit1, values, node.size());
-      } else {
-        // Make node1 the smallest
-        if (uncompressedIndex(hash1, bitsConsumed) > uncompressedIndex(hash2, bitsConsumed)) {
-          Node<K, V> nodeCopy = node1;
-          node1 = node2;
-          node2 = nodeCopy;
+        K key = (K) content[i];
+        visitor.visit(key, valueAt(i));
+      }
+      for (int i = dataLength; i < content.length; i++) {
+        nodeAt(i).forEach(visitor);
+      }
+    }
+
+    /**
+     * Returns {@code node} with the entries in {@code [from, to)} added, which must be sorted in
+     * trie order and share the {@code bitsConsumed} hash bits consumed by the parent of the node.
+     */
+    static <K, V> Node<K, V> putAll(
+        CompressedIndex<K, V> node,
+        K[] keys,
+        V[] values,
+        int[] hashes,
+        int from,
+        int to,
+        int bitsConsumed) {
+      // As the entries are sorted, they all have the prefix if the first and last have it
+      if (node.hasPrefix(hashes[from]) && node.hasPrefix(hashes[to - 1])) {
+        return build(node, keys, values, hashes, from, to, node.level);
+      }
+      Node<K, V> result = node;
+      for (int i = from; i < to; i++) {
+        result = result.put(keys[i], values[i], hashes[i], bitsConsumed);
+      }
+      return result;
+    }
+
+    /**
+     * Returns a node with the entries of {@code existing}, if any, and the entries in {@code [from,
+     * to)}, which take precedence. The entries must be sorted in trie order and share the hash bits
+     * below {@code level}, which must be the level of the existing node. There must be at least two
+     * entries that differ at {@code level} if there is no existing node.
+     */
+    private static <K, V> CompressedIndex<K, V> build(
+        @Nullable CompressedIndex<K, V> existing,
+        K[] keys,
+        V[] values,
+        int[] hashes,
+        int from,
+        int to,
+        int level) {
+      int existingDataMap = existing == null ? 0 : existing.dataMap;
+      int existingNodeMap = existing == null ? 0 : existing.nodeMap;
+      // First find where each index's entries will be, to size the content
+      int newDataMap = existingDataMap;
+      int newNodeMap = existingNodeMap;
+      for (int groupFrom = from; groupFrom < to; ) {
+        int indexBit = indexBit(hashes[groupFrom], level);
+        int groupTo = groupEnd(hashes, groupFrom, to, level);
+        if ((existingNodeMap & indexBit) == 0) {
+          if (groupTo - groupFrom == 1
+              && ((existingDataMap & indexBit) == 0
+                  || keyEquals(existing.content[existing.dataIndex(indexBit)], keys[groupFrom]))) {
+            newDataMap |= indexBit;
+          } else {
+            newDataMap &= ~indexBit;
+            newNodeMap |= indexBit;
+          }
+        }
+        groupFrom = groupTo;
+      }
+      Object[] newContent =
+          new Object[2 * Integer.bitCount(newDataMap) + Integer.bitCount(newNodeMap)];
+      int newSize = 0;
+      int dataIndex = 0;
+      int nodeIndex = newContent.length - 1;
+      int groupFrom = from;
+      for (int bits = newDataMap | newNodeMap; bits != 0; bits &= bits - 1) {
+        int indexBit = Integer.lowestOneBit(bits);
+        int groupTo = groupFrom;
+        if (groupFrom < to && indexBit(hashes[groupFrom], level) == indexBit) {
+          groupTo = groupEnd(hashes, groupFrom, to, level);
+        }
+        if ((newDataMap & indexBit) != 0) {
+          if (groupTo > groupFrom) {
+            newContent[dataIndex] = keys[groupFrom];
+            newContent[dataIndex + 1] = values[groupFrom];
+          } else {
+            int existingIndex = existing.dataIndex(indexBit);
+            newContent[dataIndex] = existing.content[existingIndex];
+            newContent[dataIndex + 1] = existing.content[existingIndex + 1];
+          }
+          dataIndex += 2;
+          newSize++;
+        } else {
+          Node<K, V> node;
+          if ((existingNodeMap & indexBit) != 0) {
+            node = existing.nodeAt(existing.nodeIndex(indexBit));
+            if (node instanceof CompressedIndex && groupTo > groupFrom) {
+              node =
+                  putAll(
+                      (CompressedIndex<K, V>) node,
+                      keys,
+                      values,
+                      hashes,
+                      groupFrom,
+                      groupTo,
+                      level + BITS);
+            } else {
+              for (int i = groupFrom; i < groupTo; i++) {
+                node = node.put(keys[i], values[i], hashes[i], level + BITS);
+              }
+            }
+          } else if ((existingDataMap & indexBit) != 0
+              && indexOf(keys, groupFrom, groupTo, existing.content[existing.dataIndex(indexBit)])
+                  == -1) {
+            // Push the existing entry down
+            int existingIndex = existing.dataIndex(indexBit);
+            @SuppressWarnings("unchecked")
+            K existingKey = (K) existing.content[existingIndex];
+            V existingValue = existing.valueAt(existingIndex);
+            if (groupTo - groupFrom == 1) {
+              node =
+                  combine(
+                      existingKey,
+                      existingValue,
+                      existingKey.hashCode(),
+                      keys[groupFrom],
+                      values[groupFrom],
+                      hashes[groupFrom],
+                      level + BITS);
+            } else {
+              node =
+                  buildNode(keys, values, hashes, groupFrom, groupTo)
+                      .put(existingKey, existingValue, existingKey.hashCode(), level + BITS);
+            }
+          } else {
+            node = buildNode(keys, values, hashes, groupFrom, groupTo);
+          }
+          newContent[nodeIndex--] = node;
+          newSize += node.size();
         }
+        groupFrom = groupTo;
+      }
+      int prefix = existing == null ? hashes[from] & prefixMask(level) : existing.prefix;
+      return new CompressedIndex<>(level, prefix, newDataMap, newNodeMap, newContent, newSize);
+    }
+
+    /** Builds a node for two or more new entries, sorted in trie order. */
+    static <K, V> Node<K, V> buildNode(K[] keys, V[] values, int[] hashes, int from, int to) {
+      if (hashes[from] == hashes[to - 1]) {
+        // Entries with equal hashes are adjacent, so these all collide
+        Node<K, V> node =
+            new CollisionLeaf<>(keys[from], values[from], keys[from + 1], values[from + 1]);
+        for (int i = from + 2; i < to; i++) {
+          node = node.put(keys[i], values[i], hashes[i], 0);
+        }
+        return node;
+      }
+      // The bits shared by the first and last entries are shared by all of them
+      return build(null, keys, values, hashes, from, to, branchLevel(hashes[from], hashes[to - 1]));
+    }
+
+    // End of the entries starting at from that have the same index at this level
+    private static int groupEnd(int[] hashes, int from, int to, int level) {
+      int index = uncompressedIndex(hashes[from], level);
+      int groupTo = from + 1;
+      while (groupTo < to && uncompressedIndex(hashes[groupTo], level) == index) {
+        groupTo++;
+      }
+      return groupTo;
+    }
+
+    /** Replaces the child node at {@code nodeIndex} with an inline entry. */
+    private Node<K, V> copyAndMigrateToData(int indexBit, int nodeIndex, K key, V value) {
+      int dataIndex = dataIndex(indexBit);
+      Object[] newContent = new Object[content.length + 1];
+      System.arraycopy(content, 0, newContent, 0, dataIndex);
+      newContent[dataIndex] = key;
+      newContent[dataIndex + 1] = value;
+      System.arraycopy(content, dataIndex, newContent, dataIndex + 2, nodeIndex - dataIndex);
+      System.arraycopy(
+          content, nodeIndex + 1, newContent, nodeIndex + 2, content.length - nodeIndex - 1);
+      return new CompressedIndex<>(
+          level, prefix, dataMap | indexBit, nodeMap ^ indexBit, newContent, size - 1);
+    }
+
+    /** Replaces the inline entry at {@code dataIndex} with {@code node}. */
+    private CompressedIndex<K, V> copyAndMigrateToNode(
+        int indexBit, int dataIndex, Node<K, V> node) {
+      // The node is inserted at its position in the new (shorter by one) content array
+      int newNodeIndex = content.length - 2 - Integer.bitCount(nodeMap & (indexBit - 1));
+      Object[] newContent = new Object[content.length - 1];
+      System.arraycopy(content, 0, newContent, 0, dataIndex);
+      System.arraycopy(content, dataIndex + 2, newContent, dataIndex, newNodeIndex - dataIndex);
+      newContent[newNodeIndex] = node;
+      System.arraycopy(
+          content,
+          newNodeIndex + 2,
+          newContent,
+          newNodeIndex + 1,
+          content.length - newNodeIndex - 2);
+      return new CompressedIndex<>(
+          level,
+          prefix,
+          dataMap ^ indexBit,
+          nodeMap | indexBit,
+          newContent,
+          size - 1 + node.size());
+    }
+
+    /** Sets the entry or child node at an index, if any, to {@code node}. */
+    private CompressedIndex<K, V> withNode(int indexBit, Node<K, V> node) {
+      if ((dataMap & indexBit) != 0) {
+        return copyAndMigrateToNode(indexBit, dataIndex(indexBit), node);
+      }
+      if ((nodeMap & indexBit) != 0) {
+        int nodeIndex = nodeIndex(indexBit);
+        Object[] newContent = Arrays.copyOf(content, content.length);
+        newContent[nodeIndex] = node;
+        return new CompressedIndex<>(
+            level,
+            prefix,
+            dataMap,
+            nodeMap,
+            newContent,
+            size - nodeAt(nodeIndex).size() + node.size());
+      }
+      int newNodeIndex = content.length - Integer.bitCount(nodeMap & (indexBit - 1));
+      Object[] newContent = new Object[content.length + 1];
+      System.arraycopy(content, 0, newContent, 0, newNodeIndex);
+      newContent[newNodeIndex] = node;
+      System.arraycopy(
+          content, newNodeIndex, newContent, newNodeIndex + 1, content.length - newNodeIndex);
+      return new CompressedIndex<>(
+          level, prefix, dataMap, nodeMap | indexBit, newContent, size + node.size());
+    }
+
+    // The entry at an index as a Leaf, the child node at it, or null if there is neither
+    @Nullable
+    private Node<K, V> slot(int indexBit) {
+      if ((dataMap & indexBit) != 0) {
+        int dataIndex = dataIndex(indexBit);
         @SuppressWarnings("unchecked")
-        Node<K, V>[] values = (Node<K, V>[]) new Node<?, ?>[] {node1, node2};
-        return new CompressedIndex<>(indexBit1 | indexBit2, values, node1.size() + node2.size());
+        K key = (K) content[dataIndex];
+        return new Leaf<>(key, valueAt(dataIndex));
+      }
+      if ((nodeMap & indexBit) != 0) {
+        return nodeAt(nodeIndex(indexBit));
+      }
+      return null;
+    }
+
+    /** Implements {@link PersistentHashArrayMappedTrie#merge} for two compressed indices. */
+    static <K, V> Node<K, V> merge(
+        CompressedIndex<K, V> base, CompressedIndex<K, V> overlay, int bitsConsumed) {
+      if (base.level == overlay.level && base.prefix == overlay.prefix) {
+        return mergeSameLevel(base, overlay);
+      }
+      if (base.level < overlay.level && base.hasPrefix(overlay.prefix)) {
+        // All of overlay's entries belong at a single index of base
+        int indexBit = indexBit(overlay.prefix, base.level);
+        Node<K, V> slot = base.slot(indexBit);
+        return base.withNode(
+            indexBit, slot == null ? overlay : mergeSlots(slot, overlay, base.level + BITS));
+      }
+      if (overlay.level < base.level && overlay.hasPrefix(base.prefix)) {
+        int indexBit = indexBit(base.prefix, overlay.level);
+        Node<K, V> slot = overlay.slot(indexBit);
+        return overlay.withNode(
+            indexBit, slot == null ? base : mergeSlots(base, slot, overlay.level + BITS));
+      }
+      // The paths diverge within the bits skipped by one of the nodes
+      int level = branchLevel(base.prefix, overlay.prefix);
+      assert level >= bitsConsumed;
+      int baseIndex = uncompressedIndex(base.prefix, level);
+      int overlayIndex = uncompressedIndex(overlay.prefix, level);
+      // Child nodes are stored in reverse index order
+      Object[] content =
+          baseIndex < overlayIndex ? new Object[] {overlay, base} : new Object[] {base, overlay};
+      return new CompressedIndex<>(
+          level,
+          base.prefix & prefixMask(level),
+          0,
+          (1 << baseIndex) | (1 << overlayIndex),
+          content,
+          base.size + overlay.size);
+    }
+
+    /** Implements {@link PersistentHashArrayMappedTrie#diff} for two compressed indices. */
+    static <K, V> void diff(
+        CompressedIndex<K, V> base,
+        CompressedIndex<K, V> node,
+        DiffVisitor<? super K, ? super V> visitor) {
+      if (base.level == node.level && base.prefix == node.prefix) {
+        for (int bits = base.dataMap | base.nodeMap | node.dataMap | node.nodeMap;
+            bits != 0;
+            bits &= bits - 1) {
+          int indexBit = Integer.lowestOneBit(bits);
+          if ((base.dataMap & indexBit) != 0 && (node.dataMap & indexBit) != 0) {
+            // Compare inline entries without wrapping them
+            int baseIndex = base.dataIndex(indexBit);
+            int nodeIndex = node.dataIndex(indexBit);
+            @SuppressWarnings("unchecked")
+            K baseKey = (K) base.content[baseIndex];
+            @SuppressWarnings("unchecked")
+            K key = (K) node.content[nodeIndex];
+            if (!keyEquals(baseKey, key)) {
+              visitor.removed(baseKey, base.valueAt(baseIndex));
+              visitor.added(key, node.valueAt(nodeIndex));
+            } else if (base.valueAt(baseIndex) != node.valueAt(nodeIndex)) {
+              visitor.changed(key, base.valueAt(baseIndex), node.valueAt(nodeIndex));
+            }
+          } else {
+            PersistentHashArrayMappedTrie.diff(
+                base.slot(indexBit), node.slot(indexBit), base.level + BITS, visitor);
+          }
+        }
+      } else if (base.level < node.level && base.hasPrefix(node.prefix)) {
+        // All of node's entries belong at a single index of base
+        int nodeIndexBit = indexBit(node.prefix, base.level);
+        for (int bits = base.dataMap | base.nodeMap; bits != 0; bits &= bits - 1) {
+          int indexBit = Integer.lowestOneBit(bits);
+          PersistentHashArrayMappedTrie.diff(
+              base.slot(indexBit),
+              indexBit == nodeIndexBit ? node : null,
+              base.level + BITS,
+              visitor);
+        }
+        if (((base.dataMap | base.nodeMap) & nodeIndexBit) == 0) {
+          PersistentHashArrayMappedTrie.diff(null, node, base.level + BITS, visitor);
+        }
+      } else if (node.level < base.level && node.hasPrefix(base.prefix)) {
+        int baseIndexBit = indexBit(base.prefix, node.level);
+        for (int bits = node.dataMap | node.nodeMap; bits != 0; bits &= bits - 1) {
+          int indexBit = Integer.lowestOneBit(bits);
+          PersistentHashArrayMappedTrie.diff(
+              indexBit == baseIndexBit ? base : null,
+              node.slot(indexBit),
+              node.level + BITS,
+              visitor);
+        }
+        if (((node.dataMap | node.nodeMap) & baseIndexBit) == 0) {
+          PersistentHashArrayMappedTrie.diff(base, null, node.level + BITS, visitor);
+        }
+      } else {
+        // The paths diverge, so the nodes have no keys in common
+        PersistentHashArrayMappedTrie.diff(base, null, 0, visitor);
+        PersistentHashArrayMappedTrie.diff(null, node, 0, visitor);
+      }
+    }
+
+    private static <K, V> CompressedIndex<K, V> mergeSameLevel(
+        CompressedIndex<K, V> base, CompressedIndex<K, V> overlay) {
+      int baseBits = base.dataMap | base.nodeMap;
+      int overlayBits = overlay.dataMap | overlay.nodeMap;
+      int shared = baseBits & overlayBits;
+      // First merge the indices both nodes have, to know which will hold an entry
+      Object[] merged = new Object[Integer.bitCount(shared)];
+      int newDataMap = (base.dataMap | overlay.dataMap) & ~shared;
+      int newNodeMap = (base.nodeMap | overlay.nodeMap) & ~shared;
+      boolean sameAsBase = (overlayBits & ~baseBits) == 0;
+      boolean sameAsOverlay = (baseBits & ~overlayBits) == 0;
+      int mergedIndex = 0;
+      for (int bits = shared; bits != 0; bits &= bits - 1) {
+        int indexBit = Integer.lowestOneBit(bits);
+        Node<K, V> baseSlot = base.slot(indexBit);
+        Node<K, V> overlaySlot = overlay.slot(indexBit);
+        Node<K, V> node = mergeSlots(baseSlot, overlaySlot, base.level + BITS);
+        sameAsBase &= node == baseSlot;
+        sameAsOverlay &= node == overlaySlot;
+        merged[mergedIndex++] = node;
+        if (node instanceof Leaf) {
+          newDataMap |= indexBit;
+        } else {
+          newNodeMap |= indexBit;
+        }
+      }
+      if (sameAsOverlay) {
+        return overlay;
+      }
+      if (sameAsBase) {
+        return base;
+      }
+      Object[] newContent =
+          new Object[2 * Integer.bitCount(newDataMap) + Integer.bitCount(newNodeMap)];
+      int newSize = 0;
+      int dataIndex = 0;
+      int nodeIndex = newContent.length - 1;
+      mergedIndex = 0;
+      for (int bits = newDataMap | newNodeMap; bits != 0; bits &= bits - 1) {
+        int indexBit = Integer.lowestOneBit(bits);
+        if ((shared & indexBit) != 0) {
+          @SuppressWarnings("unchecked")
+          Node<K, V> node = (Node<K, V>) merged[mergedIndex++];
+          if (node instanceof Leaf) {
+            Leaf<K, V> leaf = (Leaf<K, V>) node;
+            newContent[dataIndex++] = leaf.key;
+            newContent[dataIndex++] = leaf.value;
+          } else {
+            newContent[nodeIndex--] = node;
+          }
+          newSize += node.size();
+          continue;
+        }
+        CompressedIndex<K, V> from = (overlayBits & indexBit) != 0 ? overlay : base;
+        if ((from.dataMap & indexBit) != 0) {
+          int fromIndex = from.dataIndex(indexBit);
+          newContent[dataIndex++] = from.content[fromIndex];
+          newContent[dataIndex++] = from.content[fromIndex + 1];
+          newSize++;
+        } else {
+          Node<K, V> node = from.nodeAt(from.nodeIndex(indexBit));
+          newContent[nodeIndex--] = node;
+          newSize += node.size();
+        }
+      }
+      return new CompressedIndex<>(
+          base.level, base.prefix, newDataMap, newNodeMap, newContent, newSize);
+    }
+
+    // Merges what two nodes have at the same index, where entries are given as Leafs
+    private static <K, V> Node<K, V> mergeSlots(
+        Node<K, V> base, Node<K, V> overlay, int bitsConsumed) {
+      if (base instanceof Leaf && overlay instanceof Leaf) {
+        // Leaf.put would return a root node
+        Leaf<K, V> baseLeaf = (Leaf<K, V>) base;
+        Leaf<K, V> overlayLeaf = (Leaf<K, V>) overlay;
+        if (keyEquals(baseLeaf.key, overlayLeaf.key)) {
+          return overlay;
+        }
+        return combine(
+            baseLeaf.key,
+            baseLeaf.value,
+            baseLeaf.key.hashCode(),
+            overlayLeaf.key,
+            overlayLeaf.value,
+            overlayLeaf.key.hashCode(),
+            bitsConsumed);
+      }
+      return PersistentHashArrayMappedTrie.merge(base, overlay, bitsConsumed);
+    }
+
+    /** Returns a node holding two entries with different keys. */
+    static <K, V> Node<K, V> combine(
+        K key1, V value1, int hash1, K key2, V value2, int hash2, int bitsConsumed) {
+      if (hash1 == hash2) {
+        return new CollisionLeaf<>(key1, value1, key2, value2);
+      }
+      int level = branchLevel(hash1, hash2);
+      assert level >= bitsConsumed;
+      Object[] content;
+      // Keep entries in uncompressed index order
+      if (uncompressedIndex(hash1, level) < uncompressedIndex(hash2, level)) {
+        content = new Object[] {key1, value1, key2, value2};
+      } else {
+        content = new Object[] {key2, value2, key1, value1};
+      }
+      return new CompressedIndex<>(
+          level,
+          hash1 & prefixMask(level),
+          indexBit(hash1, level) | indexBit(hash2, level),
+          0,
+          content,
+          2);
+    }
+
+    /**
+     * Returns a node holding the entries of {@code node} and a new entry for another hash. Only the
+     * bits of {@code nodeHash} up to where it differs from {@code hash} are used.
+     */
+    static <K, V> Node<K, V> combine(
+        Node<K, V> node, int nodeHash, K key, V value, int hash, int bitsConsumed) {
+      assert nodeHash != hash;
+      int level = branchLevel(nodeHash, hash);
+      assert level >= bitsConsumed;
+      return new CompressedIndex<>(
+          level,
+          hash & prefixMask(level),
+          indexBit(hash, level),
+          indexBit(nodeHash, level),
+          new Object[] {key, value, node},
+          node.size() + 1);
+    }
+
+    @Override
+    int computeContentHashCode() {
+      int dataLength = 2 * Integer.bitCount(dataMap);
+      int hash = entriesContentHashCode(content, dataLength);
+      for (int i = dataLength; i < content.length; i++) {
+        hash += nodeAt(i).contentHashCode();
+      }
+      return hash;
+    }
+
+    boolean hasSameLayout(CompressedIndex<?, ?> other) {
+      return level == other.level
+          && prefix == other.prefix
+          && dataMap == other.dataMap
+          && nodeMap == other.nodeMap;
+    }
+
+    /** Compares the entries and child nodes of an index with the same layout. */
+    boolean contentEquals(CompressedIndex<K, V> other) {
+      int dataLength = 2 * Integer.bitCount(dataMap);
+      for (int i = 0; i < dataLength; i += 2) {
+        if (!keyEquals(content[i], other.content[i])
+            || !contentValueEquals(valueAt(i), other.valueAt(i))) {
+          return false;
+        }
+      }
+      for (int i = dataLength; i < content.length; i++) {
+        if (!PersistentHashArrayMappedTrie.contentEquals(
+            nodeAt(i), other.nodeAt(i), level + BITS)) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    @Override
+    int shallowHashCode() {
+      int dataLength = 2 * Integer.bitCount(dataMap);
+      int hash = entriesHashCode(content, dataLength);
+      for (int i = dataLength; i < content.length; i++) {
+        hash = 31 * hash + System.identityHashCode(content[i]);
+      }
+      return 31 * (31 * hash + dataMap) + level;
+    }
+
+    @Override
+    boolean shallowEquals(Node<?, ?> other) {
+      if (!(other instanceof CompressedIndex)) {
+        return false;
+      }
+      CompressedIndex<?, ?> index = (CompressedIndex<?, ?>) other;
+      if (!hasSameLayout(index)) {
+        return false;
+      }
+      int dataLength = 2 * Integer.bitCount(dataMap);
+      if (!entriesEqual(content, index.content, dataLength)) {
+        return false;
+      }
+      for (int i = dataLength; i < content.length; i++) {
+        if (content[i] != index.content[i]) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    /** Returns this node with each child node replaced by its interned equivalent. */
+    CompressedIndex<K, V> internChildren(Interner interner) {
+      Object[] newContent = null;
+      for (int i = 2 * Integer.bitCount(dataMap); i < content.length; i++) {
+        Node<K, V> node = nodeAt(i);
+        Node<K, V> interned = interner.intern(node);
+        if (interned != node) {
+          if (newContent == null) {
+            newContent = Arrays.copyOf(content, content.length);
+          }
+          newContent[i] = interned;
+        }
+      }
+      if (newContent == null) {
+        return this;
       }
+      return new CompressedIndex<>(level, prefix, dataMap, nodeMap, newContent, size);
     }
 
     @Override
@@ -269,32 +1686,115 @@ final class PersistentHashArrayMappedTrie {
       StringBuilder valuesSb = new StringBuilder();
       valuesSb
           .append("CompressedIndex(")
-          .append(String.format("bitmap=%s ", Integer.toBinaryString(bitmap)));
-      for (Node<K, V> value : values) {
-        valuesSb.append(value).append(" ");
+          .append(String.format("level=%d ", level))
+          .append(String.format("dataMap=%s ", Integer.toBinaryString(dataMap)))
+          .append(String.format("nodeMap=%s ", Integer.toBinaryString(nodeMap)));
+      int dataLength = 2 * Integer.bitCount(dataMap);
+      for (int i = 0; i < dataLength; i += 2) {
+        valuesSb.append("(key=").append(content[i]).append(" value=").append(content[i + 1]);
+        valuesSb.append(") ");
+      }
+      for (int i = content.length - 1; i >= dataLength; i--) {
+        valuesSb.append(content[i]).append(" ");
       }
       return valuesSb.append(")").toString();
     }
 
-    private int compressedIndex(int indexBit) {
-      return Integer.bitCount(bitmap & (indexBit - 1));
+    @SuppressWarnings("unchecked")
+    private V valueAt(int dataIndex) {
+      return (V) content[dataIndex + 1];
+    }
+
+    @SuppressWarnings("unchecked")
+    private Node<K, V> nodeAt(int nodeIndex) {
+      return (Node<K, V>) content[nodeIndex];
+    }
+
+    // Position of the key of an inline entry; its value follows it
+    private int dataIndex(int indexBit) {
+      return 2 * Integer.bitCount(dataMap & (indexBit - 1));
+    }
+
+    // Position of a child node, counting from the back of content
+    private int nodeIndex(int indexBit) {
+      return content.length - 1 - Integer.bitCount(nodeMap & (indexBit - 1));
+    }
+
+    private boolean hasPrefix(int hash) {
+      return (hash & prefixMask(level)) == prefix;
+    }
+
+    private static int prefixMask(int level) {
+      return (1 << level) - 1;
     }
 
-    private static int uncompressedIndex(int hash, int bitsConsumed) {
-      return (hash >>> bitsConsumed) & BITS_MASK;
+    // The level of the first index at which two different hashes differ
+    private static int branchLevel(int hash1, int hash2) {
+      return Integer.numberOfTrailingZeros(hash1 ^ hash2) / BITS * BITS;
     }
 
-    private static int indexBit(int hash, int bitsConsumed) {
-      int uncompressedIndex = uncompressedIndex(hash, bitsConsumed);
+    private static int uncompressedIndex(int hash, int level) {
+      return (hash >>> level) & BITS_MASK;
+    }
+
+    private static int indexBit(int hash, int level) {
+      int uncompressedIndex = uncompressedIndex(hash, level);
       return 1 << uncompressedIndex;
     }
   }
 
   abstract static class Node<K, V> {
+    // The cached contentHashCode, or 0 if it has not been computed. Racy, like String.hash
+    private int contentHash;
+
     abstract V get(K key, int hash, int bitsConsumed);
 
     abstract Node<K, V> put(K key, V value, int hash, int bitsConsumed);
 
+    /**
+     * Returns a node without the key, or {@code null} if it would be empty. Returns {@code this} if
+     * the key does not exist, and a {@link Leaf} if a single entry would remain, which interior
+     * nodes inline.
+     */
+    @Nullable
+    abstract Node<K, V> remove(K key, int hash, int bitsConsumed);
+
+    /**
+     * Returns a hash consistent with {@link #shallowEquals}, for interning. Keys and child nodes
+     * are hashed by identity and values by their {@code hashCode}.
+     */
+    abstract int shallowHashCode();
+
+    /**
+     * Returns whether the other node is of the same type and layout, with the same keys and child
+     * nodes and equal values, so that either can take the place of the other.
+     */
+    abstract boolean shallowEquals(Node<?, ?> other);
+
+    abstract void forEach(EntryVisitor<? super K, ? super V> visitor);
+
+    /**
+     * Returns the sum of the hashes of the entries, consistent with {@link
+     * PersistentHashArrayMappedTrie#contentEquals}. It is computed once, from the cached hashes of
+     * the child nodes, so it is only computed for the nodes on the path to a new entry.
+     */
+    final int contentHashCode() {
+      int hash = contentHash;
+      if (hash == 0) {
+        hash = computeContentHashCode();
+        contentHash = hash;
+      }
+      return hash;
+    }
+
+    abstract int computeContentHashCode();
+
     abstract int size();
+
+    /**
+     * Returns an estimate of the bytes of this node and the nodes and arrays it references, not
+     * including keys and values.
+     */
+    abstract long retainedBytes(MemoryLayout layout);
   }
 }
@@ -0,0 +1,199 @@
+/*
+ * Copyright 2020, Propagation.io Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.propagation.context;
+
+import io.propagation.context.PersistentHashArrayMappedTrie.Node;
+import javax.annotation.Nullable;
+
+/**
+ * An immutable map whose updates return a new map that shares most of its storage with the original
+ * one, so that an update costs {@code O(log n)} rather than the {@code O(n)} of copying a {@code
+ * HashMap}. It suits maps carried as a single context value, such as baggage, that are derived from
+ * one another as a request proceeds.
+ *
+ * <p>Keys are compared with {@code equals} and must not be {@code null}; values may be {@code
+ * null}. Maps are equal if they have equal entries, and their hash code is that of a {@link
+ * java.util.Map} with the same entries.
+ */
+public final class PersistentMap<K, V> {
+  private static final PersistentMap<Object, Object> EMPTY = new PersistentMap<>(null);
+
+  @Nullable private final Node<K, V> root;
+
+  private PersistentMap(@Nullable Node<K, V> root) {
+    this.root = root;
+  }
+
+  /** Returns the empty map. */
+  @SuppressWarnings("unchecked")
+  public static <K, V> PersistentMap<K, V> empty() {
+    return (PersistentMap<K, V>) EMPTY;
+  }
+
+  private static <K, V> PersistentMap<K, V> of(@Nullable Node<K, V> root) {
+    return root == null ? PersistentMap.<K, V>empty() : new PersistentMap<>(root);
+  }
+
+  /** Returns a builder of a map, starting from no entries. */
+  public static <K, V> Builder<K, V> builder() {
+    return new Builder<>(null);
+  }
+
+  /** Returns a builder of a map with the entries of this one. */
+  public Builder<K, V> toBuilder() {
+    return new Builder<>(root);
+  }
+
+  /** Returns the number of entries. */
+  public int size() {
+    return root == null ? 0 : root.size();
+  }
+
+  /** Returns whether the map has no entries. */
+  public boolean isEmpty() {
+    return root == null;
+  }
+
+  /** Returns the value of the key, or {@code null} if it does not have one. */
+  @Nullable
+  public V get(K key) {
+    return PersistentHashArrayMappedTrie.get(root, checkNotNull(key, "key"));
+  }
+
+  /** Returns whether the key has a value, which may be {@code null}. */
+  public boolean containsKey(K key) {
+    return PersistentHashArrayMappedTrie.containsKey(root, checkNotNull(key, "key"));
+  }
+
+  /** Returns a map with the value of the key set to {@code value}. */
+  public PersistentMap<K, V> put(K key, @Nullable V value) {
+    return new PersistentMap<>(
+        PersistentHashArrayMappedTrie.put(root, checkNotNull(key, "key"), value));
+  }
+
+  /** Returns a map without the key, which is this map if it has no value for the key. */
+  public PersistentMap<K, V> remove(K key) {
+    Node<K, V> newRoot = PersistentHashArrayMappedTrie.remove(root, checkNotNull(key, "key"));
+    return newRoot == root ? this : of(newRoot);
+  }
+
+  /** Calls the visitor with each entry, without allocating. */
+  public void forEach(EntryVisitor<? super K, ? super V> visitor) {
+    PersistentHashArrayMappedTrie.forEach(root, checkNotNull(visitor, "visitor"));
+  }
+
+  @Override
+  public boolean equals(Object other) {
+    if (!(other instanceof PersistentMap)) {
+      return false;
+    }
+    @SuppressWarnings("unchecked")
+    PersistentMap<K, V> map = (PersistentMap<K, V>) other;
+    return PersistentHashArrayMappedTrie.contentEquals(root, map.root);
+  }
+
+  @Override
+  public int hashCode() {
+    return PersistentHashArrayMappedTrie.contentHashCode(root);
+  }
+
+  @Override
+  public String toString() {
+    final StringBuilder sb = new StringBuilder("{");
+    forEach(
+        new EntryVisitor<K, V>() {
+          @Override
+          public void visit(K key, @Nullable V value) {
+            if (sb.length() > 1) {
+              sb.append(", ");
+            }
+            sb.append(key).append('=').append(value);
+          }
+        });
+    return sb.append('}').toString();
+  }
+
+  private static <T> T checkNotNull(T reference, Object errorMessage) {
+    if (reference == null) {
+      throw new NullPointerException(String.valueOf(errorMessage));
+    }
+    return reference;
+  }
+
+  /**
+   * Builds a map with many entries at once, copying each node of the map it starts from at most
+   * once per batch of entries instead of once per entry. Builders are not thread-safe.
+   */
+  public static final class Builder<K, V> {
+    // Entries are put in batches of this many
+    private static final int BATCH_SIZE = 32;
+
+    @Nullable private Node<K, V> root;
+    // Distinct keys not put yet, and their values
+    private final K[] keys;
+    private final V[] values;
+    private int count;
+
+    @SuppressWarnings("unchecked")
+    private Builder(@Nullable Node<K, V> root) {
+      this.root = root;
+      keys = (K[]) new Object[BATCH_SIZE];
+      values = (V[]) new Object[BATCH_SIZE];
+    }
+
+    /** Sets the value of the key, replacing any value previously set for it. */
+    public Builder<K, V> put(K key, @Nullable V value) {
+      checkNotNull(key, "key");
+      for (int i = 0; i < count; i++) {
+        if (PersistentHashArrayMappedTrie.keyEquals(keys[i], key)) {
+          values[i] = value;
+          return this;
+        }
+      }
+      if (count == BATCH_SIZE) {
+        flush();
+      }
+      keys[count] = key;
+      values[count] = value;
+      count++;
+      return this;
+    }
+
+    /** Removes the value of the key, if any. */
+    public Builder<K, V> remove(K key) {
+      checkNotNull(key, "key");
+      flush();
+      root = PersistentHashArrayMappedTrie.remove(root, key);
+      return this;
+    }
+
+    /** Returns a map with the entries set so far. */
+    public PersistentMap<K, V> build() {
+      flush();
+      return of(root);
+    }
+
+    private void flush() {
+      root = PersistentHashArrayMappedTrie.putAll(root, keys, values, count);
+      for (int i = 0; i < count; i++) {
+        keys[i] = null;
+        values[i] = null;
+      }
+      count = 0;
+    }
+  }
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright 2020, Propagation.io Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.propagation.context;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import io.propagation.context.Context.Key;
+import io.propagation.context.PersistentHashArrayMappedTrie.Node;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class CompiledIndexTest {
+  private static Key<?>[] keys(int count, int ordinalStep) {
+    Key<?>[] keys = new Key<?>[count];
+    for (int i = 0; i < count; i++) {
+      keys[i] = new Key<>("key" + i, null, i * ordinalStep);
+    }
+    return keys;
+  }
+
+  private static Node<Key<?>, Object> trie(Key<?>[] keys) {
+    Node<Key<?>, Object> root = null;
+    for (int i = 0; i < keys.length; i++) {
+      root = PersistentHashArrayMappedTrie.put(root, keys[i], i);
+    }
+    return root;
+  }
+
+  @Test
+  public void compile_consecutiveOrdinals() {
+    Key<?>[] keys = keys(16, 1);
+    CompiledIndex index = (CompiledIndex) CompiledIndex.compile(trie(keys));
+    // Fibonacci hashing spreads consecutive ordinals evenly
+    assertEquals(0, index.maxDisplacement);
+    for (int i = 0; i < keys.length; i++) {
+      assertEquals(i, index.get(keys[i]));
+    }
+    assertSame(null, index.get(new Key<>("other", null, 16)));
+    assertEquals(keys.length, index.size());
+    assertSame(index, CompiledIndex.compile(index));
+    assertSame(null, CompiledIndex.compile(null));
+  }
+
+  @Test
+  public void compile_collidingHashes() {
+    for (int count : new int[] {1, 2, 7, 50, 300}) {
+      // Ordinals whose hashes share many high bits
+      Key<?>[] keys = keys(count, 1 << 20);
+      Node<Key<?>, Object> index = CompiledIndex.compile(trie(keys));
+      assertTrue(index instanceof CompiledIndex);
+      for (int i = 0; i < keys.length; i++) {
+        assertEquals(i, index.get(keys[i], keys[i].hashCode(), 0));
+      }
+      Key<?> other = new Key<>("other", null, 7);
+      assertSame(null, index.get(other, other.hashCode(), 0));
+      assertEquals(count, index.size());
+    }
+  }
+
+  @Test
+  public void put_decompiles() {
+    Key<?>[] keys = keys(20, 1);
+    Node<Key<?>, Object> index = CompiledIndex.compile(trie(keys));
+
+    Node<Key<?>, Object> ret = index.put(keys[3], "replaced", keys[3].hashCode(), 0);
+    assertFalse(ret instanceof CompiledIndex);
+    assertEquals("replaced", PersistentHashArrayMappedTrie.get(ret, keys[3]));
+    assertEquals(4, PersistentHashArrayMappedTrie.get(ret, keys[4]));
+    assertEquals(keys.length, ret.size());
+    assertEquals(3, PersistentHashArrayMappedTrie.get(index, keys[3]));
+  }
+
+  @Test
+  public void remove() {
+    Key<?>[] keys = keys(20, 1);
+    Node<Key<?>, Object> index = CompiledIndex.compile(trie(keys));
+
+    Node<Key<?>, Object> ret = index.remove(keys[3], keys[3].hashCode(), 0);
+    assertSame(null, PersistentHashArrayMappedTrie.get(ret, keys[3]));
+    assertEquals(4, PersistentHashArrayMappedTrie.get(ret, keys[4]));
+    assertEquals(keys.length - 1, ret.size());
+
+    Key<?> other = new Key<>("other", null, 100);
+    assertSame(index, index.remove(other, other.hashCode(), 0));
+
+    Key<?>[] singleKey = keys(1, 1);
+    Node<Key<?>, Object> single = CompiledIndex.compile(trie(singleKey));
+    assertSame(null, single.remove(singleKey[0], singleKey[0].hashCode(), 0));
+    // A key with a null value is still present
+    Key<?> nullValueKey = new Key<>("nullValue", null, 50);
+    Node<Key<?>, Object> nullValue =
+        CompiledIndex.compile(
+            PersistentHashArrayMappedTrie.<Key<?>, Object>put(null, nullValueKey, null));
+    assertSame(null, nullValue.remove(nullValueKey, nullValueKey.hashCode(), 0));
+  }
+}
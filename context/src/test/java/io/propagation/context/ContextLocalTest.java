@@ -0,0 +1,150 @@
+/*
+ * Copyright 2020, Propagation.io Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.propagation.context;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class ContextLocalTest {
+  private static final Context.Key<String> NAME = Context.key("name");
+
+  private static final class CountingLocal extends ContextLocal<String> {
+    final AtomicInteger computed = new AtomicInteger();
+
+    @Override
+    protected String computeValue(Context context) {
+      computed.incrementAndGet();
+      String name = NAME.get(context);
+      return name == null ? null : "hello " + name;
+    }
+  }
+
+  @Test
+  public void memoizedPerContext() {
+    CountingLocal local = new CountingLocal();
+    Context context = Context.ROOT.withValue(NAME, "a");
+    String value = local.get(context);
+    assertEquals("hello a", value);
+    assertSame(value, local.get(context));
+    assertEquals(1, local.computed.get());
+
+    Context child = context.withValue(NAME, "b");
+    assertEquals("hello b", local.get(child));
+    assertSame(value, local.get(context));
+    assertEquals(2, local.computed.get());
+  }
+
+  @Test
+  public void memoizesNull() {
+    CountingLocal local = new CountingLocal();
+    Context context = Context.ROOT.withValue(NAME, null);
+    assertNull(local.get(context));
+    assertNull(local.get(context));
+    assertEquals(1, local.computed.get());
+  }
+
+  @Test
+  public void current() {
+    CountingLocal local = new CountingLocal();
+    Context context = Context.ROOT.withValue(NAME, "a");
+    Context previous = context.attach();
+    try {
+      assertEquals("hello a", local.get());
+      assertSame(local.get(context), local.get());
+    } finally {
+      context.detach(previous);
+    }
+  }
+
+  @Test
+  public void maxMemoized() {
+    Context context = Context.ROOT.withValue(NAME, "a");
+    List<CountingLocal> locals = new ArrayList<>();
+    for (int i = 0; i < ContextLocal.MAX_MEMOIZED + 1; i++) {
+      CountingLocal local = new CountingLocal();
+      local.get(context);
+      local.get(context);
+      locals.add(local);
+    }
+    for (int i = 0; i < ContextLocal.MAX_MEMOIZED; i++) {
+      assertEquals(1, locals.get(i).computed.get());
+    }
+    // Computed on each access
+    assertEquals(2, locals.get(ContextLocal.MAX_MEMOIZED).computed.get());
+    assertEquals(2 * ContextLocal.MAX_MEMOIZED, context.memos.length);
+  }
+
+  @Test
+  public void concurrentGets() throws Exception {
+    final Context context = Context.ROOT.withValue(NAME, "a");
+    final List<ContextLocal<Object>> locals = new ArrayList<>();
+    for (int i = 0; i < ContextLocal.MAX_MEMOIZED; i++) {
+      locals.add(
+          new ContextLocal<Object>() {
+            @Override
+            protected Object computeValue(Context context) {
+              return new Object();
+            }
+          });
+    }
+    int threads = 4;
+    final CountDownLatch start = new CountDownLatch(1);
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    try {
+      List<Future<List<Object>>> futures = new ArrayList<>();
+      for (int t = 0; t < threads; t++) {
+        futures.add(
+            executor.submit(
+                new Callable<List<Object>>() {
+                  @Override
+                  public List<Object> call() throws Exception {
+                    start.await();
+                    List<Object> values = new ArrayList<>();
+                    for (ContextLocal<Object> local : locals) {
+                      values.add(local.get(context));
+                    }
+                    return values;
+                  }
+                }));
+      }
+      start.countDown();
+      // Every thread sees the memoized values
+      for (Future<List<Object>> future : futures) {
+        List<Object> values = future.get();
+        for (int i = 0; i < locals.size(); i++) {
+          assertSame(locals.get(i).get(context), values.get(i));
+        }
+      }
+    } finally {
+      executor.shutdown();
+    }
+  }
+}
@@ -17,6 +17,7 @@
 package io.propagation.context;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNotSame;
 import static org.junit.Assert.assertNull;
@@ -25,10 +26,19 @@ import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 import com.google.common.util.concurrent.SettableFuture;
+import java.lang.ref.Reference;
 import java.lang.reflect.Field;
 import java.lang.reflect.Modifier;
 import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Queue;
+import java.util.Set;
 import java.util.concurrent.Callable;
 import java.util.concurrent.Executor;
 import java.util.concurrent.Executors;
@@ -209,6 +219,638 @@ public class ContextTest {
     child.detach(toRestore);
   }
 
+  @Test
+  public void withValuesBeyondSmallContext() {
+    Context.Key<?>[] keys = new Context.Key<?>[20];
+    Context[] contexts = new Context[keys.length];
+    Context ctx = Context.current();
+    for (int i = 0; i < keys.length; i++) {
+      Context.Key<Integer> key = Context.key("key" + i);
+      keys[i] = key;
+      ctx = ctx.withValue(key, i);
+      contexts[i] = ctx;
+    }
+    for (int i = 0; i < contexts.length; i++) {
+      for (int j = 0; j < keys.length; j++) {
+        assertEquals(j <= i ? Integer.valueOf(j) : null, keys[j].get(contexts[i]));
+      }
+    }
+  }
+
+  @Test
+  public void builder() {
+    Object fav = new Object();
+    Context base = Context.current().withValues(PET, "dog", COLOR, "blue");
+    Context child =
+        base.toBuilder()
+            .put(PET, "cat")
+            .put(FOOD, "cheese")
+            .put(FAVORITE, fav)
+            .put(LUCKY, 7)
+            .put(FOOD, "pizza")
+            .build();
+
+    assertEquals("cat", PET.get(child));
+    assertEquals("pizza", FOOD.get(child));
+    assertEquals("blue", COLOR.get(child));
+    assertEquals(fav, FAVORITE.get(child));
+    assertEquals(7, (int) LUCKY.get(child));
+    assertEquals(5, child.keyValueEntries.size());
+    assertEquals(base.generation + 1, child.generation);
+
+    assertEquals("dog", PET.get(base));
+    assertEquals("lasagna", FOOD.get(base.toBuilder().build()));
+  }
+
+  @Test
+  public void builderWithManyValues() {
+    Context.Builder builder = Context.ROOT.toBuilder();
+    Context.Key<?>[] keys = new Context.Key<?>[40];
+    for (int i = 0; i < keys.length; i++) {
+      Context.Key<Integer> key = Context.key("key" + i);
+      keys[i] = key;
+      builder.put(key, i);
+    }
+    Context ctx = builder.build();
+    for (int i = 0; i < keys.length; i++) {
+      assertEquals(i, keys[i].get(ctx));
+    }
+    assertEquals(keys.length, ctx.keyValueEntries.size());
+  }
+
+  @Test
+  public void withoutValue() {
+    Context base = Context.current().withValues(PET, "dog", FOOD, "cheese", COLOR, "blue");
+    Context child = base.withoutValue(FOOD);
+
+    assertEquals("dog", PET.get(child));
+    assertEquals("lasagna", FOOD.get(child));
+    assertEquals("blue", COLOR.get(child));
+    assertEquals("cheese", FOOD.get(base));
+    assertEquals(2, child.keyValueEntries.size());
+
+    // Removing an absent key is a no-op
+    assertSame(child, child.withoutValue(FAVORITE));
+    assertSame(Context.ROOT, Context.ROOT.withoutValue(PET));
+    try {
+      child.withoutValue(null);
+      fail();
+    } catch (NullPointerException expected) {
+    }
+  }
+
+  @Test
+  public void withoutValues() {
+    Context base = Context.current().withValues(PET, "dog", FOOD, "cheese", COLOR, "blue");
+    Context child = base.withoutValues(PET, COLOR, LUCKY);
+
+    assertNull(PET.get(child));
+    assertEquals("cheese", FOOD.get(child));
+    assertNull(COLOR.get(child));
+    assertEquals(1, child.keyValueEntries.size());
+    assertNull(child.withoutValues(FOOD).keyValueEntries);
+    assertSame(child, child.withoutValues(PET, LUCKY));
+    try {
+      child.withoutValues(PET, null);
+      fail();
+    } catch (NullPointerException expected) {
+    }
+  }
+
+  @Test
+  public void overlay() {
+    Context base = Context.current().withValues(PET, "dog", FOOD, "cheese");
+    Context other = Context.ROOT.withValues(FOOD, "pizza", COLOR, null);
+    Context child = base.overlay(other);
+
+    assertEquals("dog", PET.get(child));
+    assertEquals("pizza", FOOD.get(child));
+    assertNull(COLOR.get(child));
+    assertEquals(3, child.keyValueEntries.size());
+    assertEquals(base.generation + 1, child.generation);
+    assertSame(base.keyValueEntries, base.overlay(Context.ROOT).keyValueEntries);
+    assertSame(other.keyValueEntries, Context.ROOT.overlay(other).keyValueEntries);
+    try {
+      Context.ROOT.overlay(null);
+      fail();
+    } catch (NullPointerException expected) {
+    }
+  }
+
+  @Test
+  public void diff() {
+    Object fav = new Object();
+    Context base = Context.current().withValues(PET, "dog", FOOD, "cheese", COLOR, "blue");
+    Context child = base.withValues(PET, "cat", FAVORITE, fav, COLOR, "blue").withoutValue(FOOD);
+    final List<String> diffs = new ArrayList<>();
+    DiffVisitor<Context.Key<?>, Object> visitor =
+        new DiffVisitor<Context.Key<?>, Object>() {
+          @Override
+          public void added(Context.Key<?> key, Object value) {
+            diffs.add("added " + key + "=" + value);
+          }
+
+          @Override
+          public void changed(Context.Key<?> key, Object oldValue, Object newValue) {
+            diffs.add("changed " + key + "=" + oldValue + "->" + newValue);
+          }
+
+          @Override
+          public void removed(Context.Key<?> key, Object oldValue) {
+            diffs.add("removed " + key + "=" + oldValue);
+          }
+        };
+    child.diff(base, visitor);
+
+    Collections.sort(diffs);
+    assertEquals(
+        Arrays.asList("added favorite=" + fav, "changed pet=dog->cat", "removed food=cheese"),
+        diffs);
+
+    diffs.clear();
+    child.diff(child, visitor);
+    base.diff(base.withValue(COLOR, "blue"), visitor);
+    assertEquals(Collections.emptyList(), diffs);
+  }
+
+  @Test
+  public void intern() {
+    Context context = Context.ROOT.withValues(PET, "dog", FOOD, "cheese").intern();
+    assertSame(context, Context.ROOT.withValues(FOOD, "cheese", PET, "dog").intern());
+    assertNotSame(context, context.withValue(PET, "cat").intern());
+    assertEquals("cat", PET.get(context.withValue(PET, "cat").intern()));
+    assertTrue(Context.internHitRate() > 0);
+  }
+
+  @Test
+  public void contentEquals() {
+    Context context = Context.ROOT.withValues(PET, "dog", FOOD, null);
+    Context other = Context.ROOT.withValues(FOOD, null, PET, new String("dog"));
+    assertTrue(context.contentEquals(other));
+    assertEquals(context.contentHashCode(), other.contentHashCode());
+    assertTrue(context.contentEquals(context.withValue(COLOR, "blue").withoutValue(COLOR)));
+
+    assertFalse(context.contentEquals(context.withValue(PET, "cat")));
+    assertFalse(context.contentEquals(context.withoutValue(FOOD)));
+    assertFalse(context.contentEquals(Context.ROOT));
+    assertTrue(Context.ROOT.contentEquals(Context.ROOT.withValue(PET, "dog").withoutValue(PET)));
+    assertEquals(0, Context.ROOT.contentHashCode());
+  }
+
+  @Test
+  public void keySummary() {
+    Context context = Context.ROOT.withValue(PET, "dog");
+    assertEquals(PET.summaryBit, context.keySummary);
+    assertEquals("lasagna", FOOD.get(context));
+
+    // A key with the same summary bit is still looked up
+    Context.Key<String> samePet = null;
+    for (int ordinal = 1 << 20; samePet == null; ordinal++) {
+      Context.Key<String> key = new Context.Key<>("samePet", null, ordinal);
+      if (key.summaryBit == PET.summaryBit) {
+        samePet = key;
+      }
+    }
+    assertNull(samePet.get(context));
+    context = context.withValues(samePet, "cat", FOOD, "cheese");
+    assertEquals("cat", samePet.get(context));
+    assertEquals("cheese", FOOD.get(context));
+    assertEquals(PET.summaryBit | FOOD.summaryBit, context.keySummary);
+
+    context = context.withoutValue(PET);
+    assertNull(PET.get(context));
+    assertEquals("cat", samePet.get(context));
+    assertEquals(context.keySummary, context.toBuilder().put(FOOD, "pizza").build().keySummary);
+    assertEquals(
+        context.keySummary | COLOR.summaryBit,
+        context.overlay(Context.ROOT.withValue(COLOR, "blue")).keySummary);
+  }
+
+  @Test
+  public void compile() {
+    Context context = Context.ROOT.withValues(PET, "dog", FOOD, null, COLOR, "blue").compile();
+    assertEquals("dog", PET.get(context));
+    assertEquals("lasagna", FOOD.get(context));
+    assertEquals("blue", COLOR.get(context));
+    assertNull(FAVORITE.get(context));
+    assertSame(context, context.compile());
+    assertSame(Context.ROOT, Context.ROOT.compile());
+
+    Context child = context.withValue(PET, "cat");
+    assertEquals("cat", PET.get(child));
+    assertEquals("blue", COLOR.get(child));
+    assertEquals("dog", PET.get(context));
+    assertNull(COLOR.get(context.withoutValue(COLOR)));
+  }
+
+  @Test
+  public void estimateRetainedBytes() {
+    MemoryLayout layout = MemoryLayout.COMPRESSED_OOPS;
+    long rootBytes = Context.ROOT.estimateRetainedBytes(true, layout);
+    assertEquals(32, rootBytes);
+    assertEquals(rootBytes, Context.ROOT.estimateRetainedBytes(false, layout));
+
+    Context context = Context.ROOT.withValue(PET, "dog");
+    long bytes = context.estimateRetainedBytes(false, layout);
+    assertTrue(bytes > rootBytes);
+    // The String and its char[3]
+    assertEquals(bytes + 48, context.estimateRetainedBytes(true, layout));
+    assertTrue(
+        context.estimateRetainedBytes(false, MemoryLayout.UNCOMPRESSED_OOPS)
+            > context.estimateRetainedBytes(false, MemoryLayout.BITS_32));
+
+    for (int i = 0; i < 40; i++) {
+      context = context.withValue(Context.key("key" + i), i);
+    }
+    // At least a reference to each key and value
+    assertTrue(context.estimateRetainedBytes(false, layout) > bytes + 40 * 8);
+    assertTrue(context.estimateRetainedBytes() > 0);
+  }
+
+  @Test
+  public void lazyValue() {
+    final int[] computed = new int[1];
+    Context context =
+        Context.ROOT
+            .withValue(PET, "dog")
+            .withLazyValue(
+                FOOD,
+                new ValueSupplier<String>() {
+                  @Override
+                  public String get() {
+                    computed[0]++;
+                    return "pizza";
+                  }
+                });
+    Context child = context.withValue(COLOR, "blue");
+    assertEquals(0, computed[0]);
+    assertEquals("pizza", FOOD.get(child));
+    assertEquals("pizza", FOOD.get(context));
+    assertEquals(1, computed[0]);
+
+    final Map<Context.Key<?>, Object> visited = new HashMap<>();
+    child.forEachEntry(
+        new EntryVisitor<Context.Key<?>, Object>() {
+          @Override
+          public void visit(Context.Key<?> key, Object value) {
+            visited.put(key, value);
+          }
+        });
+    assertEquals("pizza", visited.get(FOOD));
+    assertTrue(
+        child.contentEquals(Context.ROOT.withValues(PET, "dog", FOOD, "pizza", COLOR, "blue")));
+
+    final List<Object> added = new ArrayList<>();
+    context.diff(
+        Context.ROOT,
+        new DiffVisitor<Context.Key<?>, Object>() {
+          @Override
+          public void added(Context.Key<?> key, Object value) {
+            added.add(value);
+          }
+
+          @Override
+          public void changed(Context.Key<?> key, Object oldValue, Object newValue) {
+            fail();
+          }
+
+          @Override
+          public void removed(Context.Key<?> key, Object oldValue) {
+            fail();
+          }
+        });
+    assertEquals(new HashSet<Object>(Arrays.asList("dog", "pizza")), new HashSet<>(added));
+  }
+
+  @Test
+  public void lazyValue_contentEquals() {
+    final int[] computed = new int[1];
+    ValueSupplier<String> supplier =
+        new ValueSupplier<String>() {
+          @Override
+          public String get() {
+            computed[0]++;
+            return "pizza";
+          }
+        };
+    Context lazy = Context.ROOT.withValue(PET, "dog").withLazyValue(FOOD, supplier);
+    Context eager = Context.ROOT.withValue(PET, "dog").withValue(FOOD, "pizza");
+
+    // Interning compares lazy values by identity, without computing them
+    Context other = Context.ROOT.withValue(PET, "dog").withLazyValue(FOOD, supplier);
+    assertNotSame(lazy.intern(), other.intern());
+    assertEquals(0, computed[0]);
+
+    assertTrue(eager.contentEquals(other));
+    assertTrue(other.contentEquals(eager));
+    assertEquals(eager.contentHashCode(), other.contentHashCode());
+    assertTrue(lazy.contentEquals(eager));
+    assertTrue(eager.contentEquals(lazy));
+    assertFalse(eager.withValue(FOOD, "salad").contentEquals(lazy));
+    assertFalse(lazy.contentEquals(eager.withValue(FOOD, "salad")));
+  }
+
+  @Test
+  public void lazyValue_retriedAfterFailure() {
+    final int[] attempts = new int[1];
+    Context context =
+        Context.ROOT.withLazyValue(
+            FOOD,
+            new ValueSupplier<String>() {
+              @Override
+              public String get() {
+                if (attempts[0]++ == 0) {
+                  throw new IllegalStateException("not yet");
+                }
+                return null;
+              }
+            });
+    try {
+      FOOD.get(context);
+      fail();
+    } catch (IllegalStateException expected) {
+      // Expected
+    }
+    // A null value reads as the default
+    assertEquals("lasagna", FOOD.get(context));
+    assertEquals("lasagna", FOOD.get(context));
+    assertEquals(2, attempts[0]);
+  }
+
+  @Test
+  public void referenceKey_contentEquals() {
+    Context.ReferenceKey<Object> body = Context.weakKey("body");
+    Object value = new Object();
+    Context context = Context.ROOT.withValue(PET, "dog").withValue(body, value);
+    Context other = Context.ROOT.withValue(body, value).withValue(PET, "dog");
+    assertTrue(context.contentEquals(other));
+    assertTrue(other.contentEquals(context));
+    assertEquals(other.contentHashCode(), context.contentHashCode());
+    assertFalse(context.contentEquals(other.withValue(body, new Object())));
+    assertFalse(context.contentEquals(Context.ROOT.withValue(PET, "dog")));
+
+    // A collected value is the same as no value
+    Context withoutBody = Context.ROOT.withValue(PET, "dog");
+    ((Reference<?>) PersistentHashArrayMappedTrie.get(other.keyValueEntries, body)).clear();
+    assertTrue(other.contentEquals(withoutBody));
+    assertTrue(withoutBody.contentEquals(other));
+    assertEquals(withoutBody.contentHashCode(), other.contentHashCode());
+    assertFalse(other.contentEquals(context));
+    assertFalse(other.contentEquals(withoutBody.withValue(body, null)));
+  }
+
+  @Test
+  public void weakKey() {
+    Context.ReferenceKey<Object> body = Context.weakKey("body");
+    Context context = withNewValue(Context.ROOT.withValue(PET, "dog"), body);
+    assertNotNull(body.get(context));
+    Context.ReferenceKey<Object> other = Context.weakKey("other");
+    Object value = new Object();
+    Context builtContext = context.toBuilder().put(other, value).build();
+    assertSame(value, other.get(builtContext));
+
+    for (int i = 0; i < 100 && body.get(context) != null; i++) {
+      System.gc();
+    }
+    assertNull(body.get(context));
+    final List<Object> visited = new ArrayList<>();
+    context.forEachEntry(
+        new EntryVisitor<Context.Key<?>, Object>() {
+          @Override
+          public void visit(Context.Key<?> key, Object value) {
+            visited.add(value);
+          }
+        });
+    assertEquals(Arrays.<Object>asList("dog"), visited);
+
+    // Derived contexts drop the collected value
+    Context child = context.withValue(COLOR, "blue");
+    assertEquals(2, child.keyValueEntries.size());
+    assertNull(body.get(child));
+    assertEquals("dog", PET.get(child));
+    Context built = context.toBuilder().put(FOOD, "pizza").build();
+    assertEquals(2, built.keyValueEntries.size());
+    assertSame(value, other.get(builtContext.withValue(FOOD, "pizza")));
+  }
+
+  private static Context withNewValue(Context context, Context.Key<Object> key) {
+    return context.withValue(key, new byte[1024]);
+  }
+
+  @Test
+  public void softKey() {
+    Context.ReferenceKey<String> name = Context.softKey("name");
+    Context context = Context.ROOT.withValues(name, "a", PET, null);
+    assertEquals("a", name.get(context));
+    assertNull(name.get(Context.ROOT));
+    assertNull(name.get(context.withValue(name, null)));
+    assertEquals("a", name.get(context.withValue(COLOR, "blue")));
+  }
+
+  @Test
+  public void getAll() {
+    List<Context.Key<String>> keys = new ArrayList<>();
+    for (int i = 0; i < 40; i++) {
+      keys.add(Context.<String>key("key" + i));
+    }
+    Context.KeySet keySet =
+        Context.keySet(FOOD, keys.get(3), PET, keys.get(17), COLOR, keys.get(39), FOOD);
+    assertEquals(7, keySet.size());
+    assertSame(PET, keySet.get(2));
+    Object[] out = new Object[keySet.size() + 1];
+
+    Context.Builder builder = Context.ROOT.toBuilder();
+    for (int i = 0; i < 20; i++) {
+      builder.put(keys.get(i), "value" + i);
+    }
+    for (Context context :
+        Arrays.asList(
+            Context.ROOT,
+            Context.ROOT.withValue(PET, "dog"),
+            builder.build(),
+            builder.build().withValues(PET, "cat", COLOR, null),
+            builder.build().withValue(PET, "cat").compile())) {
+      context.getAll(keySet, out);
+      for (int i = 0; i < keySet.size(); i++) {
+        assertEquals(keySet.get(i).get(context), out[i]);
+      }
+    }
+
+    try {
+      Context.ROOT.getAll(keySet, new Object[1]);
+      fail();
+    } catch (IllegalArgumentException expected) {
+      // Expected
+    }
+  }
+
+  @Test
+  public void project() {
+    final int[] computed = new int[1];
+    Context context =
+        Context.ROOT
+            .withValues(PET, "dog", COLOR, null, FAVORITE, new Object())
+            .withLazyValue(
+                FOOD,
+                new ValueSupplier<String>() {
+                  @Override
+                  public String get() {
+                    computed[0]++;
+                    return "pizza";
+                  }
+                });
+    Context.Key<String> absent = Context.key("absent");
+    Context.KeySet keys = Context.keySet(PET, COLOR, FOOD, absent, PET);
+
+    Context projected = context.project(keys);
+    assertEquals(3, projected.keyValueEntries.size());
+    assertEquals("dog", PET.get(projected));
+    assertNull(COLOR.get(projected));
+    assertNull(FAVORITE.get(projected));
+    assertNull(absent.get(projected));
+    assertEquals(0, computed[0]);
+    assertEquals("pizza", FOOD.get(projected));
+    assertEquals("pizza", FOOD.get(context));
+    assertEquals(1, computed[0]);
+
+    assertSame(Context.ROOT, context.project(Context.keySet(absent)));
+    assertSame(Context.ROOT, Context.ROOT.project(keys));
+  }
+
+  @Test
+  public void currentContextExecutor_projects() {
+    final List<Object> values = new ArrayList<>();
+    Executor executor =
+        Context.currentContextExecutor(
+            new Executor() {
+              @Override
+              public void execute(Runnable r) {
+                r.run();
+              }
+            },
+            Context.keySet(PET));
+    Context context = Context.ROOT.withValues(PET, "dog", COLOR, "blue");
+    Context previous = context.attach();
+    try {
+      executor.execute(
+          new Runnable() {
+            @Override
+            public void run() {
+              values.add(PET.get());
+              values.add(COLOR.get());
+            }
+          });
+    } finally {
+      context.detach(previous);
+    }
+    assertEquals(Arrays.<Object>asList("dog", null), values);
+  }
+
+  @Test
+  public void primitiveKeys() {
+    Context.LongKey traceId = Context.longKey("traceId", -1);
+    Context.IntKey priority = Context.intKey("priority", 3);
+    Context.BooleanKey sampled = Context.booleanKey("sampled", false);
+    assertEquals(-1, traceId.getLong(Context.ROOT));
+    assertEquals(3, priority.getInt(Context.ROOT));
+    assertFalse(sampled.getBoolean(Context.ROOT));
+
+    Context context =
+        Context.ROOT
+            .withValue(traceId, 0x123456789L)
+            .withValue(priority, 7)
+            .withValue(sampled, true);
+    assertEquals(0x123456789L, traceId.getLong(context));
+    assertEquals(7, priority.getInt(context));
+    assertTrue(sampled.getBoolean(context));
+    // They are keys like any other
+    assertEquals(Long.valueOf(0x123456789L), traceId.get(context));
+    assertSame(Boolean.TRUE, sampled.get(context));
+    assertEquals(-1, traceId.getLong(context.withoutValue(traceId)));
+    assertEquals(3, priority.getInt(context.withValue(priority, (Integer) null)));
+
+    Context previous = context.attach();
+    try {
+      assertEquals(0x123456789L, traceId.getLong());
+      assertEquals(7, priority.getInt());
+      assertTrue(sampled.getBoolean());
+    } finally {
+      context.detach(previous);
+    }
+  }
+
+  @Test
+  public void primitiveKeys_storedUnboxed() {
+    Context.LongKey traceId = Context.longKey("traceId", -1);
+    Context.IntKey priority = Context.intKey("priority", 3);
+    Context.Key<String> name = Context.key("name");
+
+    Context context = Context.ROOT.withValue(traceId, 0x123456789L);
+    assertTrue(((DeltaNode) context.keyValueEntries).isPrimitive());
+    context = context.withValue(name, "a").withValue(priority, 1000).withValue(priority, 1001);
+    assertEquals(0x123456789L, traceId.getLong(context));
+    assertEquals(1001, priority.getInt(context));
+    assertEquals("a", name.get(context));
+    assertEquals(3, context.keyValueEntries.size());
+
+    // Deeper chains are flattened, boxing the values below the new one
+    for (int i = 0; i < DeltaNode.MAX_DEPTH; i++) {
+      context = context.withValue(priority, i);
+    }
+    assertTrue(((DeltaNode) context.keyValueEntries).isPrimitive());
+    assertEquals(DeltaNode.MAX_DEPTH - 1, priority.getInt(context));
+    assertEquals(0x123456789L, traceId.getLong(context));
+    assertEquals(Long.valueOf(0x123456789L), traceId.get(context));
+
+    Context boxed =
+        Context.ROOT
+            .withValue(traceId, Long.valueOf(0x123456789L))
+            .withValue(name, "a")
+            .withValue(priority, Integer.valueOf(DeltaNode.MAX_DEPTH - 1));
+    assertTrue(context.contentEquals(boxed));
+    assertTrue(boxed.contentEquals(context));
+    assertEquals(boxed.contentHashCode(), context.contentHashCode());
+  }
+
+  @Test
+  public void forEachEntry() {
+    Context ctx = Context.current().withValues(PET, "dog", FOOD, null, COLOR, "blue");
+    final Map<Context.Key<?>, Object> visited = new HashMap<>();
+    EntryVisitor<Context.Key<?>, Object> visitor =
+        new EntryVisitor<Context.Key<?>, Object>() {
+          @Override
+          public void visit(Context.Key<?> key, Object value) {
+            assertFalse(visited.containsKey(key));
+            visited.put(key, value);
+          }
+        };
+    ctx.forEachEntry(visitor);
+
+    Map<Context.Key<?>, Object> expected = new HashMap<>();
+    expected.put(PET, "dog");
+    expected.put(FOOD, null);
+    expected.put(COLOR, "blue");
+    assertEquals(expected, visited);
+
+    visited.clear();
+    Context.ROOT.forEachEntry(visitor);
+    assertTrue(visited.isEmpty());
+  }
+
+  @Test
+  public void keyHashCodesAreDistinct() {
+    Set<Integer> hashCodes = new HashSet<>();
+    Set<Integer> rootIndices = new HashSet<>();
+    for (int i = 0; i < 1000; i++) {
+      Context.Key<?> key = Context.key("key");
+      assertTrue(hashCodes.add(key.hashCode()));
+      if (i < 32) {
+        // Consecutively created keys are spread across the root of the trie
+        assertTrue(rootIndices.add(key.hashCode() & 0x1F));
+      }
+    }
+  }
+
   @Test
   @SuppressWarnings("TryFailRefactoring")
   public void testWrapRunnable() {
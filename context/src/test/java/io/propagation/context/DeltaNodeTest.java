@@ -0,0 +1,238 @@
+/*
+ * Copyright 2020, Propagation.io Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.propagation.context;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import io.propagation.context.Context.Key;
+import io.propagation.context.PersistentHashArrayMappedTrie.Node;
+import java.util.HashMap;
+import java.util.Map;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class DeltaNodeTest {
+  private static final Key<?>[] KEYS = new Key<?>[DeltaNode.MAX_DEPTH + 2];
+
+  static {
+    for (int i = 0; i < KEYS.length; i++) {
+      KEYS[i] = new Key<>("key" + i, null, i);
+    }
+  }
+
+  private static final Key<String> KEY_A = Context.key("a");
+  private static final Key<String> KEY_B = Context.key("b");
+
+  private static Object get(Node<Key<?>, Object> node, Key<?> key) {
+    return node.get(key, key.hashCode(), 0);
+  }
+
+  @Test
+  public void create_chainsUntilMaxDepth() {
+    Node<Key<?>, Object> base = OrdinalIndex.create(KEYS[0], 0);
+    Node<Key<?>, Object> node = base;
+    for (int i = 1; i <= DeltaNode.MAX_DEPTH; i++) {
+      node = DeltaNode.create(node, KEYS[i], i);
+      assertTrue(node instanceof DeltaNode);
+      assertEquals(i, ((DeltaNode) node).depth);
+    }
+    Key<?> key = KEYS[DeltaNode.MAX_DEPTH + 1];
+    Node<Key<?>, Object> flat = DeltaNode.create(node, key, "flat");
+    assertFalse(flat instanceof DeltaNode);
+    assertEquals(DeltaNode.MAX_DEPTH + 2, flat.size());
+    for (int i = 0; i <= DeltaNode.MAX_DEPTH; i++) {
+      assertEquals(i, get(flat, KEYS[i]));
+    }
+    assertEquals("flat", get(flat, key));
+    // The base is left untouched
+    assertEquals(1, base.size());
+  }
+
+  @Test
+  public void shadowedKeys() {
+    Node<Key<?>, Object> node = OrdinalIndex.create(KEYS[0], "a");
+    node = DeltaNode.create(node, KEYS[1], "b");
+    node = DeltaNode.create(node, KEYS[0], "c");
+    node = DeltaNode.create(node, KEYS[1], null);
+
+    assertEquals("c", get(node, KEYS[0]));
+    assertSame(null, get(node, KEYS[1]));
+    assertEquals(2, node.size());
+    final Map<Key<?>, Object> visited = new HashMap<>();
+    node.forEach(
+        new EntryVisitor<Key<?>, Object>() {
+          @Override
+          public void visit(Key<?> key, Object value) {
+            assertFalse(visited.containsKey(key));
+            visited.put(key, value);
+          }
+        });
+    Map<Key<?>, Object> expected = new HashMap<>();
+    expected.put(KEYS[0], "c");
+    expected.put(KEYS[1], null);
+    assertEquals(expected, visited);
+  }
+
+  @Test
+  public void create_replacesShadowedDelta() {
+    Node<Key<?>, Object> node = OrdinalIndex.create(KEYS[0], "a");
+    node = DeltaNode.create(node, KEYS[1], "b");
+    node = DeltaNode.create(node, KEYS[2], "c");
+    node = DeltaNode.create(node, KEYS[1], "d");
+
+    // The delta of the old value is dropped rather than shadowed
+    assertEquals(2, ((DeltaNode) node).depth);
+    assertEquals("d", get(node, KEYS[1]));
+    assertEquals("c", get(node, KEYS[2]));
+    assertEquals(3, node.size());
+  }
+
+  @Test
+  public void reads_doNotFlatten() {
+    Node<Key<?>, Object> node = OrdinalIndex.create(KEYS[0], "a");
+    node = DeltaNode.create(node, KEYS[1], "b");
+    node = DeltaNode.create(node, KEYS[0], "c");
+    DeltaNode delta = (DeltaNode) node;
+
+    for (int i = 0; i < 100; i++) {
+      assertEquals("c", get(delta, KEYS[0]));
+    }
+    assertEquals(2, delta.size());
+    final Map<Key<?>, Object> visited = new HashMap<>();
+    DeltaNode.forEachEntry(
+        delta,
+        new DeltaNode.ChainVisitor() {
+          @Override
+          void visitEntry(Key<?> key, Object value) {
+            assertFalse(visited.containsKey(key));
+            visited.put(key, value);
+          }
+        });
+    assertEquals(2, visited.size());
+    assertEquals("c", visited.get(KEYS[0]));
+    assertSame(delta, delta.remove(KEYS[2], KEYS[2].hashCode(), 0));
+    assertEquals(delta.flattened().contentHashCode(), delta.contentHashCode());
+  }
+
+  @Test
+  public void contextReads_doNotFlatten() {
+    Context context =
+        Context.ROOT.withValue(KEY_A, "a").withValue(KEY_B, "b").withValue(KEY_A, "c");
+    DeltaNode delta = (DeltaNode) context.keyValueEntries;
+
+    assertEquals("c", KEY_A.get(context));
+    Object[] out = new Object[2];
+    context.getAll(Context.keySet(KEY_A, KEY_B), out);
+    assertArrayEquals(new Object[] {"c", "b"}, out);
+    final Map<Key<?>, Object> visited = new HashMap<>();
+    context.forEachEntry(
+        new EntryVisitor<Key<?>, Object>() {
+          @Override
+          public void visit(Key<?> key, Object value) {
+            visited.put(key, value);
+          }
+        });
+    assertEquals(2, visited.size());
+    assertEquals("c", visited.get(KEY_A));
+    assertFalse(delta.isFlattened());
+
+    // Once flattened, lookups use the trie
+    Node<Key<?>, Object> flat = delta.flattened();
+    assertSame(flat, delta.find(KEY_B));
+    assertEquals("b", KEY_B.get(context));
+    context.getAll(Context.keySet(KEY_B, KEY_A), out);
+    assertArrayEquals(new Object[] {"b", "c"}, out);
+  }
+
+  @Test
+  public void flattened() {
+    Node<Key<?>, Object> node = OrdinalIndex.create(KEYS[0], "a");
+    DeltaNode delta = (DeltaNode) DeltaNode.create(node, KEYS[1], "b");
+    Node<Key<?>, Object> flat = delta.flattened();
+    assertSame(flat, DeltaNode.flatten(delta));
+    assertEquals("b", get(delta, KEYS[1]));
+    assertSame(null, get(delta, KEYS[2]));
+
+    // Deltas over a flattened one start a new chain over its trie
+    Node<Key<?>, Object> child = DeltaNode.create(delta, KEYS[2], "c");
+    assertEquals(1, ((DeltaNode) child).depth);
+    assertEquals(3, child.size());
+    assertEquals("a", get(child, KEYS[0]));
+  }
+
+  @Test
+  public void create_primitive() {
+    Context.LongKey longKey = Context.longKey("long", 0);
+    Context.IntKey intKey = Context.intKey("int", 0);
+    Node<Key<?>, Object> node = DeltaNode.createPrimitive(null, longKey, 42L);
+    node = DeltaNode.createPrimitive(node, intKey, -7);
+    DeltaNode delta = (DeltaNode) node;
+
+    assertEquals(2, delta.depth);
+    assertEquals(2, delta.size());
+    assertTrue(delta.isPrimitive());
+    assertEquals(-7, delta.bits());
+    assertEquals(Integer.valueOf(-7), get(delta, intKey));
+    assertEquals(Long.valueOf(42), get(delta, longKey));
+    assertSame(null, get(delta, KEYS[0]));
+    assertSame(delta, delta.remove(KEYS[0], KEYS[0].hashCode(), 0));
+    assertEquals(delta.flattened().contentHashCode(), delta.contentHashCode());
+    assertEquals(1, delta.flattened().remove(intKey, intKey.hashCode(), 0).size());
+  }
+
+  @Test
+  public void retainedBytes() {
+    MemoryLayout layout = MemoryLayout.UNCOMPRESSED_OOPS;
+    Node<Key<?>, Object> node = OrdinalIndex.create(KEYS[0], "a");
+    DeltaNode child = (DeltaNode) DeltaNode.create(node, KEYS[1], "b");
+    DeltaNode grandchild = (DeltaNode) DeltaNode.create(child, KEYS[2], "c");
+    long deltaBytes = layout.objectBytes(4, 17);
+    assertEquals(2 * deltaBytes + node.retainedBytes(layout), grandchild.retainedBytes(layout));
+
+    // The deltas below a flattened one are still counted, but not the node below the chain
+    Node<Key<?>, Object> flattened = child.flattened();
+    assertEquals(
+        2 * deltaBytes + flattened.retainedBytes(layout), grandchild.retainedBytes(layout));
+  }
+
+  @Test
+  public void remove() {
+    Node<Key<?>, Object> node = OrdinalIndex.create(KEYS[0], "a");
+    node = DeltaNode.create(node, KEYS[1], "b");
+    node = DeltaNode.create(node, KEYS[0], "c");
+
+    Node<Key<?>, Object> ret = node.remove(KEYS[0], KEYS[0].hashCode(), 0);
+    assertFalse(ret instanceof DeltaNode);
+    assertSame(null, get(ret, KEYS[0]));
+    assertEquals("b", get(ret, KEYS[1]));
+    assertEquals(1, ret.size());
+    assertSame(node, node.remove(KEYS[2], KEYS[2].hashCode(), 0));
+  }
+
+  @Test
+  public void flatten_otherNodes() {
+    Node<Key<?>, Object> node = OrdinalIndex.create(KEYS[0], "a");
+    assertSame(node, DeltaNode.flatten(node));
+    assertSame(null, DeltaNode.flatten(null));
+  }
+}
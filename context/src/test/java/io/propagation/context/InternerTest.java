@@ -0,0 +1,115 @@
+/*
+ * Copyright 2020, Propagation.io Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.propagation.context;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import io.propagation.context.PersistentHashArrayMappedTrie.CompressedIndex;
+import io.propagation.context.PersistentHashArrayMappedTrie.Node;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class InternerTest {
+  private static final Context.Key<String> TENANT = Context.key("tenant");
+  private static final Context.Key<String> REGION = Context.key("region");
+
+  private final Interner interner = new Interner(Interner.TABLE_SIZE);
+
+  @Test
+  public void equalContexts() {
+    Context context = Context.ROOT.withValues(TENANT, "a", REGION, "us");
+    // Equal values that are different objects
+    Context other = Context.ROOT.withValues(REGION, new String("us"), TENANT, new String("a"));
+
+    Context interned = interner.intern(context);
+    assertSame(context, interned);
+    assertSame(interned, interner.intern(other));
+    assertSame(interned, interner.intern(interned));
+    assertEquals(2 / 3.0, interner.hitRate(), 0);
+
+    assertNotSame(interned, interner.intern(context.withValue(REGION, "eu")));
+    assertEquals("eu", REGION.get(interner.intern(other.withValue(REGION, "eu"))));
+    assertEquals(3 / 5.0, interner.hitRate(), 0);
+  }
+
+  @Test
+  public void emptyContext() {
+    Context context = Context.ROOT.withValue(TENANT, "a").withoutValue(TENANT);
+    assertSame(Context.ROOT, interner.intern(context));
+  }
+
+  @Test
+  public void sharesSubtrees() {
+    // Numbered explicitly, so that the layout of the tries does not depend on other tests
+    Context.Key<?>[] keys = new Context.Key<?>[100];
+    for (int i = 0; i < keys.length; i++) {
+      keys[i] = new Context.Key<>("key" + i, null, i);
+    }
+    Node<Context.Key<?>, Object> node1 = null;
+    Node<Context.Key<?>, Object> node2 = null;
+    for (int i = 0; i < keys.length; i++) {
+      node1 = PersistentHashArrayMappedTrie.put(node1, keys[i], "value" + i);
+      node2 = PersistentHashArrayMappedTrie.put(node2, keys[keys.length - 1 - i], "value" + i);
+    }
+    // Only the entry for the first key differs
+    node2 = PersistentHashArrayMappedTrie.put(node2, keys[0], "value0");
+    for (int i = 1; i < keys.length; i++) {
+      node2 = PersistentHashArrayMappedTrie.put(node2, keys[i], "value" + i);
+    }
+    node2 = PersistentHashArrayMappedTrie.put(node2, keys[0], "other");
+
+    CompressedIndex<Context.Key<?>, Object> index1 =
+        (CompressedIndex<Context.Key<?>, Object>) node1;
+    CompressedIndex<Context.Key<?>, Object> index2 =
+        (CompressedIndex<Context.Key<?>, Object>) node2;
+    assertTrue(index1.hasSameLayout(index2));
+    // Each child is interned right before its counterpart, so no other node can take its slot in
+    // the table in between, and the children have no children of their own that could
+    int children = 0;
+    for (int i = 2 * Integer.bitCount(index1.dataMap); i < index1.content.length; i++) {
+      @SuppressWarnings("unchecked")
+      Node<Context.Key<?>, Object> child1 = (Node<Context.Key<?>, Object>) index1.content[i];
+      @SuppressWarnings("unchecked")
+      Node<Context.Key<?>, Object> child2 = (Node<Context.Key<?>, Object>) index2.content[i];
+      assertEquals(0, ((CompressedIndex<?, ?>) child1).nodeMap);
+      assertNotSame(child1, child2);
+
+      Node<Context.Key<?>, Object> interned1 = interner.intern(child1);
+      Node<Context.Key<?>, Object> interned2 = interner.intern(child2);
+      if (PersistentHashArrayMappedTrie.get(child1, keys[0]) == null) {
+        assertSame(interned1, interned2);
+      } else {
+        assertNotSame(interned1, interned2);
+      }
+      children++;
+    }
+    assertEquals(Integer.bitCount(index1.nodeMap), children);
+
+    Node<Context.Key<?>, Object> interned = interner.intern(node2);
+    assertEquals(node2.size(), interned.size());
+    for (Context.Key<?> key : keys) {
+      assertEquals(
+          PersistentHashArrayMappedTrie.get(node2, key),
+          PersistentHashArrayMappedTrie.get(interned, key));
+    }
+  }
+}
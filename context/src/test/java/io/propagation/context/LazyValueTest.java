@@ -0,0 +1,100 @@
+/*
+ * Copyright 2020, Propagation.io Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.propagation.context;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class LazyValueTest {
+  @Test
+  public void computedOnce_concurrently() throws Exception {
+    final AtomicInteger computed = new AtomicInteger();
+    final LazyValue lazy =
+        new LazyValue(
+            new ValueSupplier<Object>() {
+              @Override
+              public Object get() {
+                computed.incrementAndGet();
+                return new Object();
+              }
+            });
+    int threads = 4;
+    final CountDownLatch start = new CountDownLatch(1);
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    try {
+      List<Future<Object>> futures = new ArrayList<>();
+      for (int i = 0; i < threads; i++) {
+        futures.add(
+            executor.submit(
+                new Callable<Object>() {
+                  @Override
+                  public Object call() throws Exception {
+                    start.await();
+                    return lazy.get();
+                  }
+                }));
+      }
+      start.countDown();
+      for (Future<Object> future : futures) {
+        assertSame(lazy.get(), future.get());
+      }
+    } finally {
+      executor.shutdown();
+    }
+    assertEquals(1, computed.get());
+  }
+
+  @Test
+  public void equality_identity() {
+    LazyValue lazy = lazy("a");
+    assertEquals(lazy, lazy);
+    assertFalse(lazy.equals(lazy("a")));
+    assertFalse(lazy.equals("a"));
+    assertEquals("LazyValue(<not computed>)", lazy.toString());
+  }
+
+  @Test
+  public void unwrap() {
+    assertEquals("a", LazyValue.unwrap(lazy("a")));
+    assertEquals("b", LazyValue.unwrap("b"));
+    assertSame(null, LazyValue.unwrap(null));
+  }
+
+  private static LazyValue lazy(final Object value) {
+    return new LazyValue(
+        new ValueSupplier<Object>() {
+          @Override
+          public Object get() {
+            return value;
+          }
+        });
+  }
+}
@@ -0,0 +1,63 @@
+/*
+ * Copyright 2020, Propagation.io Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.propagation.context;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class MemoryLayoutTest {
+  @Test
+  public void objectBytes() {
+    assertEquals(16, MemoryLayout.COMPRESSED_OOPS.objectBytes(0, 0));
+    assertEquals(24, MemoryLayout.COMPRESSED_OOPS.objectBytes(2, 4));
+    assertEquals(40, MemoryLayout.UNCOMPRESSED_OOPS.objectBytes(2, 4));
+    assertEquals(16, MemoryLayout.BITS_32.objectBytes(0, 4));
+  }
+
+  @Test
+  public void arrayBytes() {
+    assertEquals(16, MemoryLayout.COMPRESSED_OOPS.arrayBytes(0));
+    assertEquals(32, MemoryLayout.COMPRESSED_OOPS.arrayBytes(3));
+    assertEquals(48, MemoryLayout.UNCOMPRESSED_OOPS.arrayBytes(3));
+    assertEquals(16, MemoryLayout.BITS_32.arrayBytes(1, 1));
+    assertEquals(24, MemoryLayout.BITS_32.arrayBytes(3));
+  }
+
+  @Test
+  public void valueBytes() {
+    MemoryLayout layout = MemoryLayout.COMPRESSED_OOPS;
+    assertEquals(0, layout.valueBytes(null));
+    assertEquals(24, layout.valueBytes(42L));
+    assertEquals(16, layout.valueBytes(42));
+    assertEquals(16, layout.valueBytes(true));
+    // String object and its char[3]
+    assertEquals(24 + 24, layout.valueBytes("abc"));
+    assertEquals(32, layout.valueBytes(new byte[10]));
+    assertEquals(32, layout.valueBytes(new Object[4]));
+    assertEquals(16, layout.valueBytes(new Object()));
+  }
+
+  @Test
+  public void detect() {
+    assertNotNull(MemoryLayout.DEFAULT);
+  }
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright 2020, Propagation.io Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.propagation.context;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import io.propagation.context.Context.Key;
+import io.propagation.context.PersistentHashArrayMappedTrie.Node;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class OrdinalIndexTest {
+  private static final Key<?>[] KEYS = new Key<?>[OrdinalIndex.MAX_SIZE + 1];
+
+  static {
+    for (int i = 0; i < KEYS.length; i++) {
+      KEYS[i] = new Key<>("key" + i, null, i);
+    }
+  }
+
+  @Test
+  public void replace() {
+    OrdinalIndex index = new OrdinalIndex(KEYS[0], "a");
+    Node<Key<?>, Object> ret = index.put(KEYS[0], "b", KEYS[0].hashCode(), 0);
+    assertTrue(ret instanceof OrdinalIndex);
+    assertEquals("b", ((OrdinalIndex) ret).get(KEYS[0]));
+    assertEquals("a", index.get(KEYS[0]));
+
+    assertEquals(1, index.size());
+    assertEquals(1, ret.size());
+  }
+
+  @Test
+  public void insert() {
+    // Insert in reverse ordinal order so that entries have to be shifted
+    Node<Key<?>, Object> ret = new OrdinalIndex(KEYS[OrdinalIndex.MAX_SIZE - 1], 0);
+    for (int i = 1; i < OrdinalIndex.MAX_SIZE; i++) {
+      Key<?> key = KEYS[OrdinalIndex.MAX_SIZE - 1 - i];
+      Node<Key<?>, Object> previous = ret;
+      ret = ret.put(key, i, key.hashCode(), 0);
+      assertTrue(ret instanceof OrdinalIndex);
+      assertSame(null, previous.get(key, key.hashCode(), 0));
+      assertEquals(i, previous.size());
+    }
+    for (int i = 0; i < OrdinalIndex.MAX_SIZE; i++) {
+      assertEquals(OrdinalIndex.MAX_SIZE - 1 - i, ((OrdinalIndex) ret).get(KEYS[i]));
+    }
+    assertEquals(OrdinalIndex.MAX_SIZE, ret.size());
+  }
+
+  @Test
+  public void promote_full() {
+    Node<Key<?>, Object> index = new OrdinalIndex(KEYS[0], 0);
+    for (int i = 1; i < OrdinalIndex.MAX_SIZE; i++) {
+      index = index.put(KEYS[i], i, KEYS[i].hashCode(), 0);
+    }
+    Key<?> insertKey = KEYS[OrdinalIndex.MAX_SIZE];
+    Node<Key<?>, Object> ret = index.put(insertKey, OrdinalIndex.MAX_SIZE, insertKey.hashCode(), 0);
+    assertTrue(ret instanceof PersistentHashArrayMappedTrie.CompressedIndex);
+    for (int i = 0; i < KEYS.length; i++) {
+      assertEquals(i, PersistentHashArrayMappedTrie.get(ret, KEYS[i]));
+    }
+    assertEquals(OrdinalIndex.MAX_SIZE + 1, ret.size());
+  }
+
+  @Test
+  public void promote_largeOrdinal() {
+    Key<?> largeKey = new Key<>("large", null, 64);
+    OrdinalIndex index = new OrdinalIndex(KEYS[0], "a");
+    assertSame(null, index.get(largeKey));
+
+    Node<Key<?>, Object> ret = index.put(largeKey, "b", largeKey.hashCode(), 0);
+    assertTrue(ret instanceof PersistentHashArrayMappedTrie.LinearLeaf);
+    assertEquals("a", PersistentHashArrayMappedTrie.get(ret, KEYS[0]));
+    assertEquals("b", PersistentHashArrayMappedTrie.get(ret, largeKey));
+    assertEquals(2, ret.size());
+  }
+
+  @Test
+  public void remove() {
+    Node<Key<?>, Object> index = new OrdinalIndex(KEYS[0], "a").put(KEYS[1], "b", 0, 0);
+
+    Node<Key<?>, Object> ret = index.remove(KEYS[0], 0, 0);
+    assertTrue(ret instanceof OrdinalIndex);
+    assertSame(null, ((OrdinalIndex) ret).get(KEYS[0]));
+    assertEquals("b", ((OrdinalIndex) ret).get(KEYS[1]));
+    assertEquals(1, ret.size());
+    assertSame(null, ret.remove(KEYS[1], 0, 0));
+
+    assertSame(index, index.remove(KEYS[2], 0, 0));
+    assertSame(index, index.remove(new Key<>("large", null, 64), 0, 0));
+  }
+
+  @Test
+  public void forEach() {
+    Node<Key<?>, Object> index = new OrdinalIndex(KEYS[3], "a").put(KEYS[1], "b", 0, 0);
+    final StringBuilder visited = new StringBuilder();
+    index.forEach(
+        new EntryVisitor<Key<?>, Object>() {
+          @Override
+          public void visit(Key<?> key, Object value) {
+            visited.append(key).append('=').append(value).append(' ');
+          }
+        });
+    assertEquals("key1=b key3=a ", visited.toString());
+  }
+
+  @Test
+  public void create_fallsBackToTrie() {
+    Node<Key<?>, Object> ret = OrdinalIndex.create(KEYS[0], "a");
+    assertEquals(OrdinalIndex.ENABLED, ret instanceof OrdinalIndex);
+    assertEquals("a", ret.get(KEYS[0], KEYS[0].hashCode(), 0));
+  }
+}
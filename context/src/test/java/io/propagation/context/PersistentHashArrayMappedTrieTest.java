@@ -17,13 +17,20 @@
 package io.propagation.context;
 
 import static junit.framework.TestCase.assertTrue;
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertSame;
 
 import io.propagation.context.PersistentHashArrayMappedTrie.CollisionLeaf;
 import io.propagation.context.PersistentHashArrayMappedTrie.CompressedIndex;
 import io.propagation.context.PersistentHashArrayMappedTrie.Leaf;
+import io.propagation.context.PersistentHashArrayMappedTrie.LinearLeaf;
 import io.propagation.context.PersistentHashArrayMappedTrie.Node;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Map;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.ExpectedException;
@@ -58,7 +65,7 @@ public class PersistentHashArrayMappedTrieTest {
     Object value2 = new Object();
     Leaf<Key, Object> leaf = new Leaf<>(key1, value1);
     Node<Key, Object> ret = leaf.put(key2, value2, key2.hashCode(), 0);
-    assertTrue(ret instanceof CollisionLeaf);
+    assertTrue(ret instanceof LinearLeaf);
     assertSame(value1, ret.get(key1, key1.hashCode(), 0));
     assertSame(value2, ret.get(key2, key2.hashCode(), 0));
 
@@ -77,7 +84,7 @@ public class PersistentHashArrayMappedTrieTest {
     Object value2 = new Object();
     Leaf<Key, Object> leaf = new Leaf<>(key1, value1);
     Node<Key, Object> ret = leaf.put(key2, value2, key2.hashCode(), 0);
-    assertTrue(ret instanceof CompressedIndex);
+    assertTrue(ret instanceof LinearLeaf);
     assertSame(value1, ret.get(key1, key1.hashCode(), 0));
     assertSame(value2, ret.get(key2, key2.hashCode(), 0));
 
@@ -88,6 +95,101 @@ public class PersistentHashArrayMappedTrieTest {
     assertEquals(2, ret.size());
   }
 
+  @Test
+  public void leaf_remove() {
+    Key key = new Key(0);
+    Leaf<Key, Object> leaf = new Leaf<>(key, new Object());
+    assertSame(null, leaf.remove(key, key.hashCode(), 0));
+    Key otherKey = new Key(0);
+    assertSame(leaf, leaf.remove(otherKey, otherKey.hashCode(), 0));
+  }
+
+  @Test
+  public void linearLeaf_replace() {
+    Key key1 = new Key(0);
+    Key key2 = new Key(1);
+    Object value1 = new Object();
+    Object value2 = new Object();
+    Object replaceValue = new Object();
+    LinearLeaf<Key, Object> leaf = new LinearLeaf<>(key1, value1, key2, value2);
+    Node<Key, Object> ret = leaf.put(key1, replaceValue, key1.hashCode(), 0);
+    assertTrue(ret instanceof LinearLeaf);
+    assertSame(replaceValue, ret.get(key1, key1.hashCode(), 0));
+    assertSame(value2, ret.get(key2, key2.hashCode(), 0));
+
+    assertSame(value1, leaf.get(key1, key1.hashCode(), 0));
+
+    assertEquals(2, leaf.size());
+    assertEquals(2, ret.size());
+  }
+
+  @Test
+  public void linearLeaf_insert() {
+    Key[] keys = new Key[LinearLeaf.MAX_SIZE];
+    keys[0] = new Key(0);
+    keys[1] = new Key(0);
+    Node<Key, Object> ret = new LinearLeaf<Key, Object>(keys[0], 0, keys[1], 1);
+    for (int i = 2; i < keys.length; i++) {
+      keys[i] = new Key(i);
+      Node<Key, Object> previous = ret;
+      ret = ret.put(keys[i], i, keys[i].hashCode(), 0);
+      assertTrue(ret instanceof LinearLeaf);
+      assertSame(null, previous.get(keys[i], keys[i].hashCode(), 0));
+      assertEquals(i, previous.size());
+    }
+    for (int i = 0; i < keys.length; i++) {
+      assertEquals(i, ret.get(keys[i], keys[i].hashCode(), 0));
+    }
+    assertEquals(LinearLeaf.MAX_SIZE, ret.size());
+  }
+
+  @Test
+  public void linearLeaf_promote() {
+    Key[] keys = new Key[LinearLeaf.MAX_SIZE + 1];
+    keys[0] = new Key(0);
+    keys[1] = new Key(0);
+    Node<Key, Object> leaf = new LinearLeaf<Key, Object>(keys[0], 0, keys[1], 1);
+    for (int i = 2; i < LinearLeaf.MAX_SIZE; i++) {
+      keys[i] = new Key(i);
+      leaf = leaf.put(keys[i], i, keys[i].hashCode(), 0);
+    }
+    Key insertKey = new Key(1);
+    keys[LinearLeaf.MAX_SIZE] = insertKey;
+    Node<Key, Object> ret = leaf.put(insertKey, LinearLeaf.MAX_SIZE, insertKey.hashCode(), 0);
+    assertTrue(ret instanceof CompressedIndex);
+    for (int i = 0; i < keys.length; i++) {
+      assertEquals(i, ret.get(keys[i], keys[i].hashCode(), 0));
+    }
+    assertSame(null, leaf.get(insertKey, insertKey.hashCode(), 0));
+
+    assertEquals(LinearLeaf.MAX_SIZE, leaf.size());
+    assertEquals(LinearLeaf.MAX_SIZE + 1, ret.size());
+  }
+
+  @Test
+  public void linearLeaf_remove() {
+    Key key1 = new Key(0);
+    Key key2 = new Key(1);
+    Key key3 = new Key(2);
+    Node<Key, Object> leaf =
+        new LinearLeaf<Key, Object>(key1, "1", key2, "2").put(key3, "3", key3.hashCode(), 0);
+
+    Node<Key, Object> ret = leaf.remove(key2, key2.hashCode(), 0);
+    assertTrue(ret instanceof LinearLeaf);
+    assertEquals("1", ret.get(key1, key1.hashCode(), 0));
+    assertSame(null, ret.get(key2, key2.hashCode(), 0));
+    assertEquals("3", ret.get(key3, key3.hashCode(), 0));
+    assertEquals(2, ret.size());
+    assertEquals("2", leaf.get(key2, key2.hashCode(), 0));
+
+    ret = ret.remove(key1, key1.hashCode(), 0);
+    assertTrue(ret instanceof Leaf);
+    assertEquals("3", ret.get(key3, key3.hashCode(), 0));
+
+    Key otherKey = new Key(0);
+    assertSame(leaf, leaf.remove(otherKey, otherKey.hashCode(), 0));
+  }
+
   @Test
   public void collisionLeaf_assertKeysDifferent() {
     Key key1 = new Key(0);
@@ -169,21 +271,41 @@ public class PersistentHashArrayMappedTrieTest {
     assertEquals(3, ret.size());
   }
 
+  @Test
+  public void collisionLeaf_remove() {
+    Key key1 = new Key(0);
+    Key key2 = new Key(key1.hashCode());
+    Key key3 = new Key(key1.hashCode());
+    Node<Key, Object> leaf =
+        new CollisionLeaf<Key, Object>(key1, "1", key2, "2").put(key3, "3", key3.hashCode(), 0);
+
+    Node<Key, Object> ret = leaf.remove(key1, key1.hashCode(), 0);
+    assertTrue(ret instanceof CollisionLeaf);
+    assertSame(null, ret.get(key1, key1.hashCode(), 0));
+    assertEquals("2", ret.get(key2, key2.hashCode(), 0));
+    assertEquals("3", ret.get(key3, key3.hashCode(), 0));
+    assertEquals(2, ret.size());
+
+    ret = ret.remove(key3, key3.hashCode(), 0);
+    assertTrue(ret instanceof Leaf);
+    assertEquals("2", ret.get(key2, key2.hashCode(), 0));
+
+    Key otherKey = new Key(key1.hashCode());
+    assertSame(leaf, leaf.remove(otherKey, otherKey.hashCode(), 0));
+  }
+
   @Test
   public void compressedIndex_combine_differentIndexBit() {
     final Key key1 = new Key(7);
     final Key key2 = new Key(19);
     final Object value1 = new Object();
     final Object value2 = new Object();
-    Leaf<Key, Object> leaf1 = new Leaf<>(key1, value1);
-    Leaf<Key, Object> leaf2 = new Leaf<>(key2, value2);
     class Verifier {
       private void verify(Node<Key, Object> ret) {
-        CompressedIndex<Key, Object> collisionLeaf = (CompressedIndex<Key, Object>) ret;
-        assertEquals((1 << 7) | (1 << 19), collisionLeaf.bitmap);
-        assertEquals(2, collisionLeaf.values.length);
-        assertSame(value1, collisionLeaf.values[0].get(key1, key1.hashCode(), 0));
-        assertSame(value2, collisionLeaf.values[1].get(key2, key2.hashCode(), 0));
+        CompressedIndex<Key, Object> compressedIndex = (CompressedIndex<Key, Object>) ret;
+        assertEquals((1 << 7) | (1 << 19), compressedIndex.dataMap);
+        assertEquals(0, compressedIndex.nodeMap);
+        assertArrayEquals(new Object[] {key1, value1, key2, value2}, compressedIndex.content);
 
         assertSame(value1, ret.get(key1, key1.hashCode(), 0));
         assertSame(value2, ret.get(key2, key2.hashCode(), 0));
@@ -193,11 +315,10 @@ public class PersistentHashArrayMappedTrieTest {
     }
 
     Verifier verifier = new Verifier();
-    verifier.verify(CompressedIndex.combine(leaf1, key1.hashCode(), leaf2, key2.hashCode(), 0));
-    verifier.verify(CompressedIndex.combine(leaf2, key2.hashCode(), leaf1, key1.hashCode(), 0));
-
-    assertEquals(1, leaf1.size());
-    assertEquals(1, leaf2.size());
+    verifier.verify(
+        CompressedIndex.combine(key1, value1, key1.hashCode(), key2, value2, key2.hashCode(), 0));
+    verifier.verify(
+        CompressedIndex.combine(key2, value2, key2.hashCode(), key1, value1, key1.hashCode(), 0));
   }
 
   @Test
@@ -206,16 +327,15 @@ public class PersistentHashArrayMappedTrieTest {
     final Key key2 = new Key(31 << 5 | 1); // 5 bit regions: (31, 1)
     final Object value1 = new Object();
     final Object value2 = new Object();
-    Leaf<Key, Object> leaf1 = new Leaf<>(key1, value1);
-    Leaf<Key, Object> leaf2 = new Leaf<>(key2, value2);
     class Verifier {
       private void verify(Node<Key, Object> ret) {
-        CompressedIndex<Key, Object> collisionInternal = (CompressedIndex<Key, Object>) ret;
-        assertEquals(1 << 1, collisionInternal.bitmap);
-        assertEquals(1, collisionInternal.values.length);
-        CompressedIndex<Key, Object> collisionLeaf =
-            (CompressedIndex<Key, Object>) collisionInternal.values[0];
-        assertEquals((1 << 31) | (1 << 17), collisionLeaf.bitmap);
+        // A single node skips the shared region instead of a chain of two
+        CompressedIndex<Key, Object> compressedIndex = (CompressedIndex<Key, Object>) ret;
+        assertEquals(5, compressedIndex.level);
+        assertEquals(1, compressedIndex.prefix);
+        assertEquals((1 << 31) | (1 << 17), compressedIndex.dataMap);
+        assertEquals(0, compressedIndex.nodeMap);
+        assertArrayEquals(new Object[] {key1, value1, key2, value2}, compressedIndex.content);
         assertSame(value1, ret.get(key1, key1.hashCode(), 0));
         assertSame(value2, ret.get(key2, key2.hashCode(), 0));
 
@@ -224,11 +344,524 @@ public class PersistentHashArrayMappedTrieTest {
     }
 
     Verifier verifier = new Verifier();
-    verifier.verify(CompressedIndex.combine(leaf1, key1.hashCode(), leaf2, key2.hashCode, 0));
-    verifier.verify(CompressedIndex.combine(leaf2, key2.hashCode(), leaf1, key1.hashCode, 0));
+    verifier.verify(
+        CompressedIndex.combine(key1, value1, key1.hashCode(), key2, value2, key2.hashCode, 0));
+    verifier.verify(
+        CompressedIndex.combine(key2, value2, key2.hashCode(), key1, value1, key1.hashCode, 0));
+  }
+
+  @Test
+  public void compressedIndex_combine_node() {
+    Key key1 = new Key(3);
+    Key key2 = new Key(key1.hashCode());
+    Key insertKey = new Key(5);
+    Object value1 = new Object();
+    Object value2 = new Object();
+    Object insertValue = new Object();
+    CollisionLeaf<Key, Object> leaf = new CollisionLeaf<>(key1, value1, key2, value2);
+
+    Node<Key, Object> ret =
+        CompressedIndex.combine(leaf, key1.hashCode(), insertKey, insertValue, 5, 0);
+    CompressedIndex<Key, Object> compressedIndex = (CompressedIndex<Key, Object>) ret;
+    assertEquals(1 << 5, compressedIndex.dataMap);
+    assertEquals(1 << 3, compressedIndex.nodeMap);
+    assertArrayEquals(new Object[] {insertKey, insertValue, leaf}, compressedIndex.content);
+    assertSame(value1, ret.get(key1, key1.hashCode(), 0));
+    assertSame(value2, ret.get(key2, key2.hashCode(), 0));
+    assertSame(insertValue, ret.get(insertKey, insertKey.hashCode(), 0));
+    assertEquals(3, ret.size());
+  }
+
+  @Test
+  public void compressedIndex_replace() {
+    Key key1 = new Key(1);
+    Key key2 = new Key(2);
+    Object value1 = new Object();
+    Object value2 = new Object();
+    Object replaceValue = new Object();
+    Node<Key, Object> node =
+        CompressedIndex.combine(key1, value1, key1.hashCode(), key2, value2, key2.hashCode(), 0);
+
+    Node<Key, Object> ret = node.put(key2, replaceValue, key2.hashCode(), 0);
+    assertTrue(ret instanceof CompressedIndex);
+    assertSame(value1, ret.get(key1, key1.hashCode(), 0));
+    assertSame(replaceValue, ret.get(key2, key2.hashCode(), 0));
+
+    assertSame(value2, node.get(key2, key2.hashCode(), 0));
+
+    assertEquals(2, node.size());
+    assertEquals(2, ret.size());
+  }
+
+  @Test
+  public void compressedIndex_insert_migratesEntryToNode() {
+    Key key1 = new Key(1);
+    Key key2 = new Key(2);
+    Key key3 = new Key(4);
+    Key insertKey = new Key(1 << 5 | 2); // 5 bit regions: (1, 2)
+    Object insertValue = new Object();
+    Node<Key, Object> node =
+        CompressedIndex.<Key, Object>combine(
+                key1, "1", key1.hashCode(), key2, "2", key2.hashCode(), 0)
+            .put(key3, "3", key3.hashCode(), 0);
+
+    Node<Key, Object> ret = node.put(insertKey, insertValue, insertKey.hashCode(), 0);
+    CompressedIndex<Key, Object> compressedIndex = (CompressedIndex<Key, Object>) ret;
+    assertEquals((1 << 1) | (1 << 4), compressedIndex.dataMap);
+    assertEquals(1 << 2, compressedIndex.nodeMap);
+    assertEquals(5, compressedIndex.content.length);
+    assertSame(key1, compressedIndex.content[0]);
+    assertSame(key3, compressedIndex.content[2]);
+    assertTrue(compressedIndex.content[4] instanceof CompressedIndex);
+    assertEquals("1", ret.get(key1, key1.hashCode(), 0));
+    assertEquals("2", ret.get(key2, key2.hashCode(), 0));
+    assertEquals("3", ret.get(key3, key3.hashCode(), 0));
+    assertSame(insertValue, ret.get(insertKey, insertKey.hashCode(), 0));
+    assertSame(null, node.get(insertKey, insertKey.hashCode(), 0));
+
+    assertEquals(3, node.size());
+    assertEquals(4, ret.size());
+  }
+
+  @Test
+  public void compressedIndex_remove_collapsesChain() {
+    Key key1 = new Key(17 << 5 | 1); // 5 bit regions: (17, 1)
+    Key key2 = new Key(31 << 5 | 1); // 5 bit regions: (31, 1)
+    Node<Key, Object> node =
+        CompressedIndex.combine(key1, "1", key1.hashCode(), key2, "2", key2.hashCode(), 0);
 
-    assertEquals(1, leaf1.size());
-    assertEquals(1, leaf2.size());
+    Node<Key, Object> ret = node.remove(key1, key1.hashCode(), 0);
+    assertTrue(ret instanceof Leaf);
+    assertEquals("2", ret.get(key2, key2.hashCode(), 0));
+    assertEquals(1, ret.size());
+    assertEquals(2, node.size());
+  }
+
+  @Test
+  public void compressedIndex_remove_inlinesChild() {
+    Key key1 = new Key(1);
+    Key key2 = new Key(2);
+    Key key3 = new Key(1 << 5 | 2); // 5 bit regions: (1, 2)
+    Node<Key, Object> node =
+        CompressedIndex.<Key, Object>combine(
+                key1, "1", key1.hashCode(), key2, "2", key2.hashCode(), 0)
+            .put(key3, "3", key3.hashCode(), 0);
+
+    Node<Key, Object> ret = node.remove(key2, key2.hashCode(), 0);
+    CompressedIndex<Key, Object> compressedIndex = (CompressedIndex<Key, Object>) ret;
+    assertEquals((1 << 1) | (1 << 2), compressedIndex.dataMap);
+    assertEquals(0, compressedIndex.nodeMap);
+    assertArrayEquals(new Object[] {key1, "1", key3, "3"}, compressedIndex.content);
+    assertEquals(2, ret.size());
+
+    // The remaining child takes the place of the node
+    ret = node.remove(key1, key1.hashCode(), 0);
+    compressedIndex = (CompressedIndex<Key, Object>) ret;
+    assertEquals(5, compressedIndex.level);
+    assertEquals((1 << 0) | (1 << 1), compressedIndex.dataMap);
+    assertEquals(0, compressedIndex.nodeMap);
+    assertEquals("2", ret.get(key2, key2.hashCode(), 0));
+    assertEquals("3", ret.get(key3, key3.hashCode(), 0));
+    assertEquals(2, ret.size());
+
+    Key otherKey = new Key(2 << 5 | 2);
+    assertSame(node, node.remove(otherKey, otherKey.hashCode(), 0));
+  }
+
+  @Test
+  public void compressedIndex_insert_splitsPath() {
+    Key key1 = new Key(1 << 10 | 3 << 5 | 7); // 5 bit regions: (1, 3, 7)
+    Key key2 = new Key(2 << 10 | 3 << 5 | 7); // 5 bit regions: (2, 3, 7)
+    Key insertKey = new Key(4 << 5 | 7); // 5 bit regions: (4, 7)
+    Node<Key, Object> node =
+        CompressedIndex.combine(key1, "1", key1.hashCode(), key2, "2", key2.hashCode(), 0);
+    assertEquals(10, ((CompressedIndex<Key, Object>) node).level);
+
+    Node<Key, Object> ret = node.put(insertKey, "3", insertKey.hashCode(), 0);
+    CompressedIndex<Key, Object> compressedIndex = (CompressedIndex<Key, Object>) ret;
+    assertEquals(5, compressedIndex.level);
+    assertEquals(7, compressedIndex.prefix);
+    assertEquals(1 << 4, compressedIndex.dataMap);
+    assertEquals(1 << 3, compressedIndex.nodeMap);
+    assertArrayEquals(new Object[] {insertKey, "3", node}, compressedIndex.content);
+    assertEquals("1", ret.get(key1, key1.hashCode(), 0));
+    assertEquals("2", ret.get(key2, key2.hashCode(), 0));
+    assertEquals("3", ret.get(insertKey, insertKey.hashCode(), 0));
+    assertEquals(3, ret.size());
+
+    Key rootKey = new Key(8);
+    ret = node.put(rootKey, "4", rootKey.hashCode(), 0);
+    compressedIndex = (CompressedIndex<Key, Object>) ret;
+    assertEquals(0, compressedIndex.level);
+    assertEquals(1 << 8, compressedIndex.dataMap);
+    assertEquals(1 << 7, compressedIndex.nodeMap);
+    assertEquals(3, ret.size());
+  }
+
+  @Test
+  public void compressedIndex_remove_otherPrefix() {
+    Key key1 = new Key(1 << 10 | 3 << 5 | 7); // 5 bit regions: (1, 3, 7)
+    Key key2 = new Key(2 << 10 | 3 << 5 | 7); // 5 bit regions: (2, 3, 7)
+    Node<Key, Object> node =
+        CompressedIndex.combine(key1, "1", key1.hashCode(), key2, "2", key2.hashCode(), 0);
+
+    // Same index at the node's level, but different skipped bits
+    Key otherKey = new Key(1 << 10 | 4 << 5 | 7);
+    assertSame(node, node.remove(otherKey, otherKey.hashCode(), 0));
+    assertSame(null, node.get(otherKey, otherKey.hashCode(), 0));
+  }
+
+  @Test
+  public void compressedIndex_longSharedPrefixes() {
+    // Hashes that only differ in their high bits
+    Key[] keys = new Key[200];
+    Node<Key, Object> root = null;
+    for (int i = 0; i < keys.length; i++) {
+      keys[i] = new Key((i * 0x21 % 97) << 20 | 0x5A5A5);
+      root = PersistentHashArrayMappedTrie.put(root, keys[i], i);
+    }
+    for (int i = 0; i < keys.length; i++) {
+      assertEquals(i, PersistentHashArrayMappedTrie.get(root, keys[i]));
+    }
+    for (int i = 0; i < keys.length; i++) {
+      root = PersistentHashArrayMappedTrie.remove(root, keys[i]);
+      for (int j = i + 1; j < keys.length; j += 17) {
+        assertEquals(j, PersistentHashArrayMappedTrie.get(root, keys[j]));
+      }
+    }
+    assertSame(null, root);
+  }
+
+  @Test
+  public void compressedIndex_manyEntries() {
+    Key[] keys = new Key[500];
+    Node<Key, Object> root = null;
+    for (int i = 0; i < keys.length; i++) {
+      // Spread over few low bits so that interior nodes hold both entries and children
+      keys[i] = new Key(i * 0x21 % 97);
+      root = PersistentHashArrayMappedTrie.put(root, keys[i], i);
+      assertEquals(i + 1, root.size());
+    }
+    for (int i = 0; i < keys.length; i++) {
+      assertEquals(i, PersistentHashArrayMappedTrie.get(root, keys[i]));
+    }
+    assertSame(null, PersistentHashArrayMappedTrie.get(root, new Key(3)));
+  }
+
+  @Test
+  public void compressedIndex_removeManyEntries() {
+    Key[] keys = new Key[500];
+    Node<Key, Object> root = null;
+    for (int i = 0; i < keys.length; i++) {
+      keys[i] = new Key(i * 0x21 % 97);
+      root = PersistentHashArrayMappedTrie.put(root, keys[i], i);
+    }
+    for (int i = 0; i < keys.length; i++) {
+      Node<Key, Object> previous = root;
+      root = PersistentHashArrayMappedTrie.remove(root, keys[i]);
+      assertEquals(i, PersistentHashArrayMappedTrie.get(previous, keys[i]));
+      if (i < keys.length - 1) {
+        assertEquals(keys.length - i - 1, root.size());
+        assertSame(null, PersistentHashArrayMappedTrie.get(root, keys[i]));
+        assertEquals(i + 1, PersistentHashArrayMappedTrie.get(root, keys[i + 1]));
+        assertEquals(
+            keys.length - 1, PersistentHashArrayMappedTrie.get(root, keys[keys.length - 1]));
+      }
+    }
+    assertSame(null, root);
+  }
+
+  @Test
+  public void putAll_smallRoot() {
+    Key key1 = new Key(1);
+    Key key2 = new Key(2);
+    Key key3 = new Key(3);
+    Node<Key, Object> root = PersistentHashArrayMappedTrie.put(null, key1, "1");
+
+    Node<Key, Object> ret =
+        PersistentHashArrayMappedTrie.putAll(
+            root, new Key[] {key2, key1, key3}, new Object[] {"2", "one", "3"}, 3);
+    assertTrue(ret instanceof LinearLeaf);
+    assertEquals("one", ret.get(key1, key1.hashCode(), 0));
+    assertEquals("2", ret.get(key2, key2.hashCode(), 0));
+    assertEquals("3", ret.get(key3, key3.hashCode(), 0));
+    assertEquals(3, ret.size());
+
+    ret = PersistentHashArrayMappedTrie.putAll(null, new Key[] {key1}, new Object[] {"1"}, 1);
+    assertTrue(ret instanceof Leaf);
+    assertEquals("1", ret.get(key1, key1.hashCode(), 0));
+    assertSame(root, PersistentHashArrayMappedTrie.putAll(root, new Key[0], new Object[0], 0));
+  }
+
+  @Test
+  public void putAll_matchesPut() {
+    // Few distinct hashes, so that entries collide and share long prefixes
+    Key[] keys = new Key[300];
+    for (int i = 0; i < keys.length; i++) {
+      keys[i] = new Key((i * 0x21 % 97) * 0x01010101);
+    }
+    for (int rootSize : new int[] {0, 1, 5, 50, 200}) {
+      for (int batchSize : new int[] {1, 2, 3, LinearLeaf.MAX_SIZE, 40, 100}) {
+        Node<Key, Object> root = null;
+        for (int i = 0; i < rootSize; i++) {
+          root = PersistentHashArrayMappedTrie.put(root, keys[i], "old" + i);
+        }
+        // Replace some of the root's entries and add others
+        Key[] batchKeys = new Key[batchSize];
+        Object[] batchValues = new Object[batchSize];
+        Node<Key, Object> expected = root;
+        for (int i = 0; i < batchSize; i++) {
+          batchKeys[i] = keys[(rootSize / 2 + i * 7) % keys.length];
+          batchValues[i] = "new" + i;
+          expected = PersistentHashArrayMappedTrie.put(expected, batchKeys[i], batchValues[i]);
+        }
+
+        Node<Key, Object> ret =
+            PersistentHashArrayMappedTrie.putAll(root, batchKeys, batchValues, batchSize);
+        assertEquals(expected.size(), ret.size());
+        for (Key key : keys) {
+          assertEquals(
+              PersistentHashArrayMappedTrie.get(expected, key),
+              PersistentHashArrayMappedTrie.get(ret, key));
+        }
+      }
+    }
+  }
+
+  @Test
+  public void get_iterativeMatchesRecursive() {
+    // Colliding hashes, so that the lookups end at collision leaves
+    Key[] keys = new Key[300];
+    for (int i = 0; i < keys.length; i++) {
+      keys[i] = new Key((i * 0x21 % 97) * 0x01010101);
+    }
+    Node<Key, Object> root = null;
+    for (int i = 0; i < keys.length; i += 2) {
+      root = PersistentHashArrayMappedTrie.put(root, keys[i], i);
+    }
+    assertTrue(root instanceof CompressedIndex);
+    for (int i = 0; i < keys.length; i++) {
+      Object value = PersistentHashArrayMappedTrie.get(root, keys[i]);
+      assertEquals(i % 2 == 0 ? i : null, value);
+      assertEquals(root.get(keys[i], keys[i].hashCode(), 0), value);
+    }
+  }
+
+  @Test
+  public void getAll_matchesGet() {
+    Key[] keys = new Key[300];
+    for (int i = 0; i < keys.length; i++) {
+      keys[i] = new Key((i * 0x21 % 97) * 0x01010101);
+    }
+    Node<Key, Object> root = null;
+    for (int i = 0; i < keys.length; i += 2) {
+      root = PersistentHashArrayMappedTrie.put(root, keys[i], i);
+    }
+    Key[] sortedKeys = keys.clone();
+    Integer[] sortedPositions = new Integer[keys.length];
+    for (int i = 0; i < keys.length; i++) {
+      sortedPositions[i] = i;
+    }
+    int[] hashes = new int[keys.length];
+    PersistentHashArrayMappedTrie.sortInTrieOrder(sortedKeys, sortedPositions, hashes, keys.length);
+    int[] positions = new int[keys.length];
+    for (int i = 0; i < keys.length; i++) {
+      positions[i] = sortedPositions[i];
+    }
+
+    Object[] out = new Object[keys.length];
+    PersistentHashArrayMappedTrie.getAll(root, sortedKeys, hashes, positions, out);
+    for (int i = 0; i < keys.length; i++) {
+      assertEquals(PersistentHashArrayMappedTrie.get(root, keys[i]), out[i]);
+    }
+    PersistentHashArrayMappedTrie.getAll(null, sortedKeys, hashes, positions, out);
+    assertEquals(Collections.nCopies(keys.length, null), Arrays.asList(out));
+  }
+
+  @Test
+  public void merge_matchesPut() {
+    Key[] keys = new Key[300];
+    for (int i = 0; i < keys.length; i++) {
+      keys[i] = new Key((i * 0x21 % 97) * 0x01010101);
+    }
+    for (int baseSize : new int[] {0, 1, 5, 50, 200}) {
+      for (int overlaySize : new int[] {0, 1, 2, LinearLeaf.MAX_SIZE + 1, 40, 100}) {
+        Node<Key, Object> base = null;
+        for (int i = 0; i < baseSize; i++) {
+          base = PersistentHashArrayMappedTrie.put(base, keys[i], "base" + i);
+        }
+        // Overlap some of the base's keys
+        Node<Key, Object> overlay = null;
+        Node<Key, Object> expected = base;
+        for (int i = 0; i < overlaySize; i++) {
+          Key key = keys[(baseSize / 2 + i * 7) % keys.length];
+          overlay = PersistentHashArrayMappedTrie.put(overlay, key, "overlay" + i);
+          expected = PersistentHashArrayMappedTrie.put(expected, key, "overlay" + i);
+        }
+
+        Node<Key, Object> ret = PersistentHashArrayMappedTrie.merge(base, overlay);
+        if (expected == null) {
+          assertSame(null, ret);
+          continue;
+        }
+        assertEquals(expected.size(), ret.size());
+        for (Key key : keys) {
+          assertEquals(
+              PersistentHashArrayMappedTrie.get(expected, key),
+              PersistentHashArrayMappedTrie.get(ret, key));
+        }
+      }
+    }
+  }
+
+  @Test
+  public void merge_sharesSubtrees() {
+    // Hashes that share their low 5 bits, so that the root skips them
+    Node<Key, Object> base = null;
+    for (int i = 0; i < 100; i++) {
+      base = PersistentHashArrayMappedTrie.put(base, new Key(i << 5), i);
+    }
+    assertSame(base, PersistentHashArrayMappedTrie.merge(base, base));
+    assertSame(base, PersistentHashArrayMappedTrie.merge(null, base));
+    assertSame(base, PersistentHashArrayMappedTrie.merge(base, null));
+
+    // An overlay derived from the base shares all but the changed path
+    Key key = new Key(3 << 5);
+    Node<Key, Object> overlay = PersistentHashArrayMappedTrie.put(base, key, "new");
+    assertSame(overlay, PersistentHashArrayMappedTrie.merge(base, overlay));
+
+    // Subtrees that diverge are both shared
+    Node<Key, Object> other =
+        CompressedIndex.combine(new Key(1 << 20 | 5), "1", 1 << 20 | 5, new Key(5), "2", 5, 0);
+    CompressedIndex<Key, Object> ret =
+        (CompressedIndex<Key, Object>) PersistentHashArrayMappedTrie.merge(overlay, other);
+    assertEquals(0, ret.level);
+    assertArrayEquals(new Object[] {other, overlay}, ret.content);
+    assertEquals(overlay.size() + 2, ret.size());
+    assertEquals("new", PersistentHashArrayMappedTrie.get(ret, key));
+  }
+
+  @Test
+  public void diff_matchesLookups() {
+    final Key[] keys = new Key[300];
+    for (int i = 0; i < keys.length; i++) {
+      keys[i] = new Key((i * 0x21 % 97) * 0x01010101);
+    }
+    for (int baseSize : new int[] {0, 1, 5, 50, 200}) {
+      for (int changes : new int[] {0, 1, 2, LinearLeaf.MAX_SIZE + 1, 40, 100}) {
+        Node<Key, Object> base = null;
+        for (int i = 0; i < baseSize; i++) {
+          base = PersistentHashArrayMappedTrie.put(base, keys[i], "base" + i);
+        }
+        // Replace, add and remove entries of the base
+        Node<Key, Object> node = base;
+        for (int i = 0; i < changes; i++) {
+          Key key = keys[(baseSize / 2 + i * 7) % keys.length];
+          if (i % 3 == 0) {
+            node = PersistentHashArrayMappedTrie.remove(node, key);
+          } else {
+            node = PersistentHashArrayMappedTrie.put(node, key, "node" + i);
+          }
+        }
+
+        final Map<Key, String> diffs = new IdentityHashMap<>();
+        PersistentHashArrayMappedTrie.diff(
+            base,
+            node,
+            new DiffVisitor<Key, Object>() {
+              @Override
+              public void added(Key key, Object value) {
+                assertSame(null, diffs.put(key, "added " + value));
+              }
+
+              @Override
+              public void changed(Key key, Object oldValue, Object newValue) {
+                assertSame(null, diffs.put(key, "changed " + oldValue + " " + newValue));
+              }
+
+              @Override
+              public void removed(Key key, Object oldValue) {
+                assertSame(null, diffs.put(key, "removed " + oldValue));
+              }
+            });
+
+        for (Key key : keys) {
+          Object oldValue = PersistentHashArrayMappedTrie.get(base, key);
+          Object newValue = PersistentHashArrayMappedTrie.get(node, key);
+          String expected = null;
+          if (oldValue == null && newValue != null) {
+            expected = "added " + newValue;
+          } else if (oldValue != null && newValue == null) {
+            expected = "removed " + oldValue;
+          } else if (oldValue != newValue) {
+            expected = "changed " + oldValue + " " + newValue;
+          }
+          assertEquals(expected, diffs.get(key));
+        }
+      }
+    }
+  }
+
+  @Test
+  public void contentEquals() {
+    Key[] keys = new Key[300];
+    for (int i = 0; i < keys.length; i++) {
+      keys[i] = new Key((i * 0x21 % 97) * 0x01010101);
+    }
+    for (int size : new int[] {1, 5, 50, 200}) {
+      // Build equal tries in different orders, and with values that are not the same objects
+      Node<Key, Object> root = null;
+      Node<Key, Object> other = null;
+      for (int i = 0; i < size; i++) {
+        root = PersistentHashArrayMappedTrie.put(root, keys[i], "value" + i);
+        int j = size - 1 - i;
+        other = PersistentHashArrayMappedTrie.put(other, keys[j], "value" + j);
+      }
+      assertTrue(PersistentHashArrayMappedTrie.contentEquals(root, other));
+      assertEquals(
+          PersistentHashArrayMappedTrie.contentHashCode(root),
+          PersistentHashArrayMappedTrie.contentHashCode(other));
+
+      Node<Key, Object> changed = PersistentHashArrayMappedTrie.put(root, keys[size / 2], "other");
+      assertFalse(PersistentHashArrayMappedTrie.contentEquals(root, changed));
+      Node<Key, Object> nullValue = PersistentHashArrayMappedTrie.put(root, keys[size / 2], null);
+      assertFalse(PersistentHashArrayMappedTrie.contentEquals(nullValue, root));
+      assertTrue(
+          PersistentHashArrayMappedTrie.contentEquals(
+              nullValue, PersistentHashArrayMappedTrie.put(other, keys[size / 2], null)));
+      Node<Key, Object> added = PersistentHashArrayMappedTrie.put(root, keys[size], "other");
+      assertFalse(PersistentHashArrayMappedTrie.contentEquals(root, added));
+      assertFalse(PersistentHashArrayMappedTrie.contentEquals(root, null));
+    }
+  }
+
+  @Test
+  public void forEach() {
+    final Map<Key, Object> visited = new IdentityHashMap<>();
+    EntryVisitor<Key, Object> visitor =
+        new EntryVisitor<Key, Object>() {
+          @Override
+          public void visit(Key key, Object value) {
+            assertSame(null, visited.put(key, value));
+          }
+        };
+    PersistentHashArrayMappedTrie.forEach(null, visitor);
+    assertTrue(visited.isEmpty());
+
+    Key[] keys = new Key[500];
+    Node<Key, Object> root = null;
+    for (int i = 0; i < keys.length; i++) {
+      keys[i] = new Key(i * 0x21 % 97);
+      root = PersistentHashArrayMappedTrie.put(root, keys[i], i);
+      if (i < 20 || i % 50 == 0) {
+        visited.clear();
+        PersistentHashArrayMappedTrie.forEach(root, visitor);
+        assertEquals(i + 1, visited.size());
+        for (int j = 0; j <= i; j++) {
+          assertEquals(j, visited.get(keys[j]));
+        }
+      }
+    }
   }
 
   /** A key with a settable hashcode. */
@@ -0,0 +1,169 @@
+/*
+ * Copyright 2020, Propagation.io Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.propagation.context;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.HashMap;
+import java.util.Map;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class PersistentMapTest {
+  @Test
+  public void empty() {
+    PersistentMap<String, String> map = PersistentMap.empty();
+    assertTrue(map.isEmpty());
+    assertEquals(0, map.size());
+    assertNull(map.get("a"));
+    assertFalse(map.containsKey("a"));
+    assertSame(map, map.remove("a"));
+    assertEquals("{}", map.toString());
+  }
+
+  @Test
+  public void putAndGet_equalKeys() {
+    PersistentMap<String, Integer> map = PersistentMap.<String, Integer>empty().put("a", 1);
+    // A key that is equal to, but not the same as, the one put
+    String key = new String("a");
+    assertEquals(Integer.valueOf(1), map.get(key));
+
+    PersistentMap<String, Integer> replaced = map.put(key, 2);
+    assertEquals(1, replaced.size());
+    assertEquals(Integer.valueOf(2), replaced.get("a"));
+    assertEquals(Integer.valueOf(1), map.get("a"));
+
+    assertTrue(map.remove(key).isEmpty());
+  }
+
+  @Test
+  public void nullValues() {
+    PersistentMap<String, String> map = PersistentMap.<String, String>empty().put("a", null);
+    assertEquals(1, map.size());
+    assertNull(map.get("a"));
+    assertTrue(map.containsKey("a"));
+    assertNotEquals(PersistentMap.empty(), map);
+  }
+
+  @Test
+  public void nullKey() {
+    try {
+      PersistentMap.<String, String>empty().put(null, "a");
+      fail();
+    } catch (NullPointerException expected) {
+    }
+  }
+
+  @Test
+  public void manyEntries() {
+    PersistentMap<Integer, Integer> map = PersistentMap.empty();
+    for (int i = 0; i < 1000; i++) {
+      map = map.put(i, -i);
+    }
+    assertEquals(1000, map.size());
+    for (int i = 0; i < 1000; i++) {
+      assertEquals(Integer.valueOf(-i), map.get(new Integer(i)));
+    }
+    for (int i = 0; i < 1000; i += 2) {
+      map = map.remove(i);
+    }
+    assertEquals(500, map.size());
+    for (int i = 0; i < 1000; i++) {
+      assertEquals(i % 2 == 0 ? null : Integer.valueOf(-i), map.get(i));
+    }
+  }
+
+  @Test
+  public void collisions() {
+    PersistentMap<CollidingKey, String> map = PersistentMap.empty();
+    for (int i = 0; i < 10; i++) {
+      map = map.put(new CollidingKey(i), "v" + i);
+    }
+    assertEquals(10, map.size());
+    for (int i = 0; i < 10; i++) {
+      assertEquals("v" + i, map.get(new CollidingKey(i)));
+    }
+    map = map.put(new CollidingKey(3), "replaced").remove(new CollidingKey(4));
+    assertEquals(9, map.size());
+    assertEquals("replaced", map.get(new CollidingKey(3)));
+    assertFalse(map.containsKey(new CollidingKey(4)));
+  }
+
+  @Test
+  public void builder() {
+    PersistentMap.Builder<Integer, String> builder = PersistentMap.builder();
+    for (int i = 0; i < 100; i++) {
+      builder.put(i, "a" + i);
+    }
+    // Replaces both pending and already put entries
+    builder.put(new Integer(99), "b").put(new Integer(0), "c").remove(50);
+    PersistentMap<Integer, String> map = builder.build();
+    assertEquals(99, map.size());
+    assertEquals("c", map.get(0));
+    assertEquals("b", map.get(99));
+    assertNull(map.get(50));
+    assertEquals("a1", map.get(1));
+
+    PersistentMap<Integer, String> updated = map.toBuilder().put(1, "d").put(100, "e").build();
+    assertEquals(100, updated.size());
+    assertEquals("d", updated.get(1));
+    assertEquals("a1", map.get(1));
+  }
+
+  @Test
+  public void equalsAndHashCode_matchMap() {
+    PersistentMap<String, Integer> map = PersistentMap.empty();
+    PersistentMap.Builder<String, Integer> builder = PersistentMap.builder();
+    Map<String, Integer> hashMap = new HashMap<>();
+    for (int i = 0; i < 50; i++) {
+      map = map.put("k" + i, i);
+      builder.put("k" + (49 - i), 49 - i);
+      hashMap.put("k" + i, i);
+    }
+    PersistentMap<String, Integer> built = builder.build();
+    assertEquals(map, built);
+    assertEquals(hashMap.hashCode(), map.hashCode());
+    assertEquals(hashMap.hashCode(), built.hashCode());
+    assertNotEquals(map, map.put("k0", -1));
+  }
+
+  private static final class CollidingKey {
+    private final int id;
+
+    CollidingKey(int id) {
+      this.id = id;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+      return other instanceof CollidingKey && ((CollidingKey) other).id == id;
+    }
+
+    @Override
+    public int hashCode() {
+      return 42;
+    }
+  }
+}